@@ -0,0 +1,105 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+
+/**
+ * Writes a sequence straight to an output as fast as it can be generated, with no prompt and no
+ * scheduler, for use in pipelines. Terms are stepped in place by a {@link TermCursor} over
+ * decimal limbs, since printing a decimal term is a copy of its digits while printing a binary
+ * one is a radix conversion, and written one per line to an {@link OutputSink}, which only writes
+ * to its channel when its buffer fills. Each term is printed and dropped, and the line it is
+ * printed into is reused, so once the limb arrays and the line have grown to the size of the
+ * terms the loop allocates nothing, and memory stays bounded however large the terms grow.
+ *
+ * The sequence ends after a number of terms, after the last term not above a max value, which is
+ * found up front, or when the output fails, such as when the reader of a pipe closes it.
+ */
+final class Batch {
+
+    private final BigInteger a;
+    private final BigInteger b;
+    private final long       count;
+    private final BigInteger max;
+
+
+
+    /**
+     * Creates a batch. If the terms are not a valid start of a sequence or the count is
+     * negative, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   a       First term
+     * @param   b       Second term
+     * @param   count   Number of terms to write, or -1 for no limit
+     * @param   max     Batch will not go higher than this value, or null for no limit
+     */
+    Batch(BigInteger a, BigInteger b, long count, BigInteger max) {
+        if (a.signum() < 0 || b.compareTo(a) < 0) {
+            throw new IllegalArgumentException("term1 and term2 must be non-negative, and "
+                    + "term2 must be later in the sequence: term1=" + a + " term2=" + b);
+        } else if (count < -1) {
+            throw new IllegalArgumentException("Count must be non-negative: " + count);
+        }
+
+        this.a     = a;
+        this.b     = b;
+        this.count = count;
+        this.max   = max;
+    }
+
+
+
+    /**
+     * Writes the sequence, starting with its first two terms, and flushes the output.
+     *
+     * @param   out     Output to write to
+     * @return          Number of terms written
+     */
+    long write(OutputSink out) {
+        long remaining = count < 0 ? Long.MAX_VALUE : count;
+        if (max != null) {
+            long last = Fibonacci.lastIndexWithin(a, b, max);
+            if (last != Long.MAX_VALUE) {
+                remaining = Math.min(remaining, last + 1);
+            }
+        }
+
+        TermCursor cursor  = new TermCursor(a, b);
+        byte[]     line    = new byte[64];
+        long       written = 0;
+        while (written < remaining && !out.checkError()) {
+            BigNat term = written == 0 ? cursor.previous()
+                        : written == 1 ? cursor.current() : cursor.next();
+
+            // The line grows with the terms, doubling so it is rarely replaced
+            int digits = term.digitCount();
+            if (digits + 1 > line.length) {
+                line = new byte[Math.max(line.length * 2, digits + 1)];
+            }
+            int end = term.writeAscii(line, 0);
+            line[end] = '\n';
+            out.write(line, 0, end + 1);
+            ++written;
+        }
+
+        out.flush();
+        return written;
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A mutable non-negative integer of any size kept in decimal. The value is an array of limbs in
+ * base 10^18, least significant first, as in {@link DecimalNat}, but it is added to in place and
+ * the array only grows, doubling its capacity when it runs out. Unlike {@link DecimalNat} and
+ * {@link BigInteger}, adding to a value allocates nothing once the array is large enough, and
+ * printing it only copies the digits of each limb.
+ */
+public final class BigNat implements Comparable<BigNat> {
+
+    /**
+     * Limbs of the value, least significant first. Limbs from {@link #length} on are always 0.
+     */
+    private long[] limbs;
+
+    /**
+     * Number of limbs in use. Zero has no limbs.
+     */
+    private int length;
+
+
+
+    /**
+     * Creates a natural number with the value of a non-negative {@link BigInteger}. If the
+     * value is negative, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   value   Initial value
+     */
+    public BigNat(BigInteger value) {
+        if (value.signum() < 0) {
+            throw new IllegalArgumentException("Value must be non-negative: " + value);
+        }
+
+        String digits = value.toString();
+        length = value.signum() == 0 ? 0 : (digits.length() + DecimalNat.LIMB_DIGITS - 1)
+                                           / DecimalNat.LIMB_DIGITS;
+        limbs  = new long[Math.max(length * 2, 4)];
+        int end = digits.length();
+        for (int i = 0; i < length; ++i) {
+            int start = Math.max(0, end - DecimalNat.LIMB_DIGITS);
+            limbs[i] = Long.parseLong(digits, start, end, 10);
+            end = start;
+        }
+    }
+
+    /**
+     * Creates a natural number with the same value as another.
+     *
+     * @param   other   Value to copy
+     */
+    public BigNat(BigNat other) {
+        length = other.length;
+        limbs  = Arrays.copyOf(other.limbs, other.limbs.length);
+    }
+
+
+
+    /**
+     * Adds another natural number to this one in place.
+     *
+     * @param   other   Value to add
+     * @return          This number
+     */
+    public BigNat add(BigNat other) {
+        int n = Math.max(length, other.length);
+        if (n + 1 > limbs.length) {
+            limbs = Arrays.copyOf(limbs, Math.max(limbs.length * 2, n + 1));
+        }
+
+        long carry = 0;
+        int i = 0;
+        for (; i < other.length; ++i) {
+            long s = limbs[i] + other.limbs[i] + carry;
+            carry = s >= DecimalNat.BASE ? 1 : 0;
+            limbs[i] = s - carry * DecimalNat.BASE;
+        }
+        for (; carry != 0 && i < n; ++i) {
+            long s = limbs[i] + carry;
+            carry = s >= DecimalNat.BASE ? 1 : 0;
+            limbs[i] = s - carry * DecimalNat.BASE;
+        }
+
+        length = n;
+        if (carry != 0) {
+            limbs[length++] = carry;
+        }
+        return this;
+    }
+
+    /**
+     * @return  Number of decimal digits in the value
+     */
+    public int digitCount() {
+        if (length == 0) {
+            return 1;
+        }
+        int topDigits = 1;
+        for (long t = limbs[length - 1]; t >= 10; t /= 10) {
+            ++topDigits;
+        }
+        return (length - 1) * DecimalNat.LIMB_DIGITS + topDigits;
+    }
+
+    /**
+     * Writes the decimal digits of the value to an array of ASCII bytes. Each limb is copied
+     * digit by digit, so this is linear in the number of digits.
+     *
+     * @param   out     Array with at least {@link #digitCount()} bytes from <code>offset</code>
+     * @param   offset  Index of the first digit
+     * @return          Index after the last digit
+     */
+    public int writeAscii(byte[] out, int offset) {
+        int end = offset + digitCount();
+        int at = end;
+        for (int i = 0; i < length - 1; ++i) {
+            long limb = limbs[i];
+            for (int d = 0; d < DecimalNat.LIMB_DIGITS; ++d) {
+                out[--at] = (byte)('0' + limb % 10);
+                limb /= 10;
+            }
+        }
+
+        long top = length == 0 ? 0 : limbs[length - 1];
+        do {
+            out[--at] = (byte)('0' + top % 10);
+            top /= 10;
+        } while (top != 0);
+
+        return end;
+    }
+
+    /**
+     * Creates an immutable copy of the value.
+     *
+     * @return  Value as a {@link BigInteger}
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(toString());
+    }
+
+    @Override
+    public int compareTo(BigNat other) {
+        if (length != other.length) {
+            return length < other.length ? -1 : 1;
+        }
+        for (int i = length - 1; i >= 0; --i) {
+            if (limbs[i] != other.limbs[i]) {
+                return limbs[i] < other.limbs[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof BigNat && compareTo((BigNat)o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = 0;
+        for (int i = 0; i < length; ++i) {
+            hash = 31 * hash + Long.hashCode(limbs[i]);
+        }
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        byte[] digits = new byte[digitCount()];
+        writeAscii(digits, 0);
+        return new String(digits, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A utility class that formats blocks of terms as one line of ASCII text. Each term is formatted
+ * into its own byte array, in parallel when the block is large enough to be worth it, and the
+ * arrays are then copied once, in order, into a line of exactly the right size.
+ */
+final class BlockFormatter {
+
+    /**
+     * Blocks whose terms add up to fewer bits than this are formatted on the calling thread.
+     */
+    static final long PARALLEL_BITS = 1 << 16;
+
+    /**
+     * Approximate number of bits in each decimal digit, log2 of 10.
+     */
+    static final double BITS_PER_DIGIT = 3.321928094887362;
+
+
+
+    /**
+     * Formats a block of terms as a line of text separated by spaces and ending with a newline.
+     *
+     * @param   block   Terms in either representation
+     * @param   count   Number of terms from the start of the block to format
+     * @return          ASCII text of the line, or an empty array if there are no terms
+     */
+    static byte[] format(final List<? extends Number> block, final int count) {
+        if (count <= 0) {
+            return new byte[0];
+        }
+
+        // Read the terms in order first, so a lazy block finds each one with a single addition
+        Number[] values = block.subList(0, count).toArray(new Number[count]);
+
+        byte[][] terms = new byte[count][];
+        IntStream indices = IntStream.range(0, count);
+        if (count > 1 && totalBits(values) >= PARALLEL_BITS) {
+            indices = indices.parallel();
+        }
+        indices.forEach(i -> terms[i] = format(values[i]));
+
+        int size = count;   // a separator or newline after each term
+        for (byte[] term : terms) {
+            size += term.length;
+        }
+
+        byte[] line = new byte[size];
+        int at = 0;
+        for (byte[] term : terms) {
+            System.arraycopy(term, 0, line, at, term.length);
+            at += term.length;
+            line[at++] = ' ';
+        }
+        line[size - 1] = '\n';
+        return line;
+    }
+
+    /**
+     * Formats a single term as decimal ASCII digits.
+     *
+     * @param   term    {@link BigInteger} or {@link DecimalNat}
+     * @return          Digits of the term
+     */
+    static byte[] format(final Number term) {
+        if (term instanceof DecimalNat) {
+            DecimalNat dec = (DecimalNat)term;
+            byte[] digits = new byte[(int)dec.digitCount()];
+            dec.writeAscii(digits, 0);
+            return digits;
+        }
+        return RadixFormat.toAscii((BigInteger)term, 10);
+    }
+
+    /**
+     * Estimates the number of bits in a term in either representation.
+     *
+     * @param   term    {@link BigInteger} or {@link DecimalNat}
+     * @return          Bit length of the term, estimated from its digits if it is decimal
+     */
+    static long bitLength(final Number term) {
+        if (term instanceof DecimalNat) {
+            return (long)(((DecimalNat)term).digitCount() * BITS_PER_DIGIT);
+        }
+        return ((BigInteger)term).bitLength();
+    }
+
+    private static long totalBits(final Number[] terms) {
+        long bits = 0;
+        for (int i = 0; i < terms.length && bits < PARALLEL_BITS; ++i) {
+            bits += bitLength(terms[i]);
+        }
+        return bits;
+    }
+
+
+    // Private constructor to prevent instantiation
+    private BlockFormatter() {}
+}
@@ -0,0 +1,533 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pipeline that generates and formats blocks of a sequence ahead of the display. A generator
+ * thread computes blocks and hands them to a formatter thread, and the formatter turns each block
+ * into a ready {@link Frame} of text. The display takes one frame per tick with {@link #poll()},
+ * which never waits, so a slow terminal does not stall generation and an expensive block does not
+ * delay the tick. When the display falls behind, the {@link Policy} decides what happens to new
+ * frames.
+ *
+ * Frames are read ahead for as long as the pipeline runs, whether or not the display is taking
+ * them, so a paused display resumes with frames that are already formatted. The lookahead is
+ * bounded both by {@link #LOOKAHEAD_FRAMES} and by {@link #LOOKAHEAD_BYTES} of waiting text, so
+ * huge terms do not fill memory. Frames generated ahead are only discarded along with the
+ * pipeline, by {@link #stop()}.
+ *
+ * Block size is either fixed or, with {@link #autoSize(long)}, chosen before each block to fit a
+ * time budget. The cost of generating and of formatting a block are measured per bit, since both
+ * grow with the size of the terms, and the next block gets as many terms as the expected cost
+ * allows. Blocks may also be capped by {@link #limitBytes(long)} at an estimated number of bytes
+ * of text, decided from the bit lengths of the terms before anything is generated, so that
+ * neither memory nor display time per block grows without bound as the terms do. With a max
+ * value, the index of the last term within it is found before the first block, and the last
+ * block is cut short at exactly that term.
+ *
+ * Each stage hands immutable records to the next through a lock-free {@link SpscRingBuffer}, so
+ * the display thread must be the only thread calling {@link #poll()}. A stage with nothing to do
+ * backs off by parking for longer and longer, up to {@link #MAX_PARK_NANOS}.
+ */
+final class BlockPipeline {
+
+    /**
+     * What happens to frames formatted ahead when the display falls behind. The formatter
+     * holds on to one pending frame while the queue of ready frames is full, and the policy
+     * decides whether it waits, merges newer frames into the pending one, or lets the display
+     * skip the older frames in the queue.
+     */
+    enum Policy {
+        /**
+         * Wait for the display to take a frame, so generation pauses until there is room.
+         */
+        BLOCK,
+        /**
+         * Drop the oldest ready frames when the display takes one, so it skips ahead to the
+         * newest frame in the queue. The formatter waits for room as with {@link #BLOCK}.
+         */
+        DROP_OLDEST,
+        /**
+         * Merge the newer frame into the pending frame, so a later tick shows several blocks at
+         * once. Frames are only merged up to {@link #MAX_COALESCED_BYTES}, after which the
+         * formatter waits as with {@link #BLOCK}.
+         */
+        COALESCE
+    }
+
+    /**
+     * Number of blocks waiting to be formatted.
+     */
+    static final int BLOCK_QUEUE_SIZE = 2;
+
+    /**
+     * Number of formatted frames that may wait to be displayed.
+     */
+    static final int LOOKAHEAD_FRAMES = 8;
+
+    /**
+     * Text that may wait to be displayed before the generator stops reading ahead, 16 MB.
+     */
+    static final long LOOKAHEAD_BYTES = 1 << 24;
+
+    /**
+     * Largest text a coalesced frame may grow to, 1 MB.
+     */
+    static final int MAX_COALESCED_BYTES = 1 << 20;
+
+    /**
+     * Largest block size chosen to fit a time budget.
+     */
+    static final int MAX_AUTO_BLOCK_SIZE = 1 << 16;
+
+    /**
+     * Bits each term is counted as having on top of its length, for the cost of handling a term
+     * at all.
+     */
+    static final int TERM_OVERHEAD_BITS = 64;
+
+    /**
+     * Weight of the latest block in the measured costs.
+     */
+    static final double COST_WEIGHT = 0.25;
+
+    /**
+     * Shortest time an idle stage parks before checking again, 10 microseconds.
+     */
+    static final long MIN_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(10);
+
+    /**
+     * Longest time an idle stage parks before checking again, 5 milliseconds.
+     */
+    static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(5);
+
+
+    /**
+     * Blocks waiting for the formatter.
+     */
+    private final SpscRingBuffer<Block> blocks = new SpscRingBuffer<>(BLOCK_QUEUE_SIZE);
+
+    /**
+     * Frames waiting for the display.
+     */
+    private final SpscRingBuffer<Frame> frames = new SpscRingBuffer<>(LOOKAHEAD_FRAMES);
+
+    /**
+     * Bytes of text in frames waiting for the display.
+     */
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    private final Fibonacci.Engine engine;
+    private final BigInteger       max;
+    private final Policy           policy;
+
+    /**
+     * Number of terms in each block still to be generated.
+     */
+    private volatile int blockSize;
+
+    /**
+     * Time allowed for generating and formatting each block in nanoseconds, or 0 to use
+     * {@link #blockSize}.
+     */
+    private volatile long budget;
+
+    /**
+     * Most bytes of text each block may be estimated to take, or 0 for no limit.
+     */
+    private volatile long maxBytes;
+
+    /**
+     * Measured time in nanoseconds to generate and to format one bit of a block, or 0 before
+     * the first block. Each is only written by its own stage. The terms of a lazy block are
+     * calculated as the formatter reads them, so that time is counted in the format cost, and
+     * blocks are sized by the sum of the two.
+     */
+    private volatile double generateCost;
+    private volatile double formatCost;
+
+    private volatile boolean running;
+
+    private Thread generator;
+    private Thread formatter;
+
+    /**
+     * Second-last and last terms before the next block to generate. Only used by the generator.
+     */
+    private Number term0;
+    private Number term1;
+
+
+
+    /**
+     * Creates a pipeline for the blocks following two given terms. Nothing is generated until
+     * {@link #start()} is called.
+     *
+     * @param   term0       Second-last term before the first block
+     * @param   term1       Last term before the first block
+     * @param   blockSize   Number of terms in each block
+     * @param   engine      Number representation to generate blocks in
+     * @param   max         Sequence will not go higher than this value, or null for no limit
+     * @param   policy      What to do when the display falls behind
+     */
+    BlockPipeline(Number term0, Number term1, final int blockSize, Fibonacci.Engine engine,
+                  BigInteger max, Policy policy)
+    {
+        this.term0     = term0;
+        this.term1     = term1;
+        this.blockSize = blockSize;
+        this.engine    = engine;
+        this.max       = max;
+        this.policy    = policy;
+    }
+
+
+
+    /**
+     * Starts the generator and formatter threads.
+     */
+    synchronized void start() {
+        running = true;
+        generator = new Thread(this::generate, "fibonacci-generator");
+        formatter = new Thread(this::format, "fibonacci-formatter");
+        generator.setDaemon(true);
+        formatter.setDaemon(true);
+        generator.start();
+        formatter.start();
+    }
+
+    /**
+     * Stops both threads. Any blocks and frames that have not been displayed are dropped along
+     * with the pipeline.
+     */
+    synchronized void stop() {
+        running = false;
+        if (generator != null) {
+            LockSupport.unpark(generator);
+            LockSupport.unpark(formatter);
+        }
+    }
+
+    /**
+     * Changes the number of terms in blocks generated from now on. Blocks already generated
+     * ahead keep their size.
+     *
+     * @param   blockSize   Number of terms in each block, at least 2
+     */
+    void resize(final int blockSize) {
+        if (blockSize < 2) {
+            throw new IllegalArgumentException("Block size must be at least 2: " + blockSize);
+        }
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * Sizes blocks generated from now on to fit a time budget, once the cost of a block has been
+     * measured. Until then, and if the budget is 0, blocks have the size last set by
+     * {@link #resize(int)}.
+     *
+     * @param   budget  Time allowed for generating and formatting each block in nanoseconds, or
+     *                  0 for a fixed size
+     */
+    void autoSize(final long budget) {
+        if (budget < 0) {
+            throw new IllegalArgumentException("Budget must be non-negative: " + budget);
+        }
+        this.budget = budget;
+    }
+
+    /**
+     * Caps blocks generated from now on at an estimated number of bytes of text. Each term takes
+     * about <code>bitLength*log10(2)</code> digits and a separator. Blocks still have at least 2
+     * terms, however large.
+     *
+     * @param   maxBytes    Most bytes of text in each block, or 0 for no limit
+     */
+    void limitBytes(final long maxBytes) {
+        if (maxBytes < 0) {
+            throw new IllegalArgumentException("Byte limit must be non-negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Finds the largest number of terms that fit a budget when the first term costs a given
+     * amount and each term after it costs a fixed amount more than the last, so that
+     * <code>n</code> terms cost <code>n*first + growth*n^2/2</code>.
+     *
+     * @param   first   Cost of the first term
+     * @param   growth  Cost each term adds to the one before it
+     * @param   budget  Total cost allowed
+     * @return          Number of terms, at most {@link Integer#MAX_VALUE}
+     */
+    static int termsWithin(final double first, final double growth, final double budget) {
+        double n = (Math.sqrt(first * first + 2 * growth * budget) - first) / growth;
+        return (int)Math.min(Integer.MAX_VALUE, Math.max(0, n));
+    }
+
+    /**
+     * Takes the next ready frame without waiting, or with {@link Policy#DROP_OLDEST} the newest
+     * ready frame, dropping the ones before it. Only called by the display thread.
+     *
+     * @return  Next frame, or null if none is ready yet
+     */
+    Frame poll() {
+        Frame frame = frames.poll();
+        if (frame == null) {
+            return null;
+        }
+        queuedBytes.addAndGet(-frame.text.length);
+
+        if (policy == Policy.DROP_OLDEST) {
+            for (Frame next; !frame.complete && (next = frames.poll()) != null; ) {
+                queuedBytes.addAndGet(-next.text.length);
+                frame = next;
+            }
+        }
+        return frame;
+    }
+
+
+
+    private void generate() {
+        // Terms left up to the max, found once so no term past it is generated or compared
+        long remaining = Long.MAX_VALUE;
+        if (max != null) {
+            remaining = Fibonacci.lastIndexWithin(Fibonacci.toBigInteger(term0),
+                                                  Fibonacci.toBigInteger(term1), max) - 1;
+        }
+
+        boolean complete = false;
+        while (running && !complete) {
+            for (long park = MIN_PARK_NANOS; queuedBytes.get() >= LOOKAHEAD_BYTES;
+                 park = idle(park))
+            {
+                if (!running) {
+                    return;
+                }
+            }
+
+            // Cut the block at the max, so it ends on the last term within it
+            int count = (int)Math.max(0, Math.min(nextSize(), remaining));
+            complete  = count >= remaining;
+            remaining -= count;
+
+            // Only the last two terms are read here, which a lazy block finds directly. The rest
+            // are calculated as the formatter reads them, and counted in its cost. A last block
+            // of fewer than two terms leaves the terms as they were, since nothing follows it
+            List<? extends Number> terms = List.of();
+            long bits = 0;
+            if (count > 0) {
+                bits = blockBits(term1, count);
+                long begin = System.nanoTime();
+                terms = engine.nextBlock(count, term0, term1);
+                if (count >= 2) {
+                    term0 = terms.get(count - 2);
+                    term1 = terms.get(count - 1);
+                }
+                generateCost = measure(generateCost, System.nanoTime() - begin, bits);
+            }
+
+            Block block = new Block(terms, count, bits, term0, term1, complete);
+            for (long park = MIN_PARK_NANOS; !blocks.offer(block); park = idle(park)) {
+                if (!running) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void format() {
+        Frame pending = null;
+        long park = MIN_PARK_NANOS;
+
+        while (running) {
+            if (pending != null && publish(pending)) {
+                if (pending.complete) {
+                    return;
+                }
+                pending = null;
+            }
+
+            // Only take another block if the policy allows it to be combined with the pending one
+            Block block = null;
+            if (pending == null || policy == Policy.COALESCE) {
+                block = blocks.poll();
+            }
+            if (block == null) {
+                park = idle(park);
+                continue;
+            }
+            park = MIN_PARK_NANOS;
+
+            long begin = System.nanoTime();
+            byte[] text = BlockFormatter.format(block.terms, block.count);
+            formatCost = measure(formatCost, System.nanoTime() - begin, block.bits);
+
+            Frame frame = new Frame(text, block.count, block.term0, block.term1, block.complete);
+            if (pending == null) {
+                pending = frame;
+            } else if (pending.text.length + frame.text.length <= MAX_COALESCED_BYTES) {
+                pending = pending.merge(frame);
+            } else {
+                while (!publish(pending)) {
+                    if (!running) {
+                        return;
+                    }
+                    park = idle(park);
+                }
+                pending = frame;
+            }
+        }
+    }
+
+    /**
+     * Chooses the size of the next block. With a budget, the block after a term of
+     * <code>b</code> bits has about <code>n*(b + o) + g*n^2/2</code> bits, where <code>o</code>
+     * is {@link #TERM_OVERHEAD_BITS} and <code>g</code> is {@link Fibonacci#BITS_PER_TERM}, and
+     * the size is the largest <code>n</code> whose bits cost no more than the budget. The byte
+     * limit is worked out the same way in digits.
+     */
+    private int nextSize() {
+        int    size   = blockSize;
+        long   budget = this.budget;
+        double cost   = generateCost + formatCost;
+        double bits   = BlockFormatter.bitLength(term1);
+        if (budget > 0 && cost > 0) {
+            size = Math.min(MAX_AUTO_BLOCK_SIZE,
+                            termsWithin(bits + TERM_OVERHEAD_BITS, Fibonacci.BITS_PER_TERM,
+                                        budget / cost));
+        }
+
+        long maxBytes = this.maxBytes;
+        if (maxBytes > 0) {
+            size = Math.min(size,
+                            termsWithin(bits / BlockFormatter.BITS_PER_DIGIT + 1,
+                                        Fibonacci.BITS_PER_TERM / BlockFormatter.BITS_PER_DIGIT,
+                                        maxBytes));
+        }
+        return Math.max(2, size);
+    }
+
+    /**
+     * Estimates the bits in a block, counting {@link #TERM_OVERHEAD_BITS} for each term.
+     *
+     * @param   before  Term before the block
+     * @param   size    Number of terms in the block
+     */
+    private static long blockBits(final Number before, final int size) {
+        double b = BlockFormatter.bitLength(before) + TERM_OVERHEAD_BITS;
+        return (long)(size * b + Fibonacci.BITS_PER_TERM * size * (size + 1) / 2);
+    }
+
+    /**
+     * Updates a measured cost per bit with the time taken by the latest block.
+     */
+    private static double measure(final double cost, final long nanos, final long bits) {
+        double latest = (double)nanos / Math.max(1, bits);
+        return cost == 0 ? latest : cost + COST_WEIGHT * (latest - cost);
+    }
+
+    /**
+     * Offers a frame to the display, counting its text towards the lookahead.
+     *
+     * @return  Whether there was room for the frame
+     */
+    private boolean publish(Frame frame) {
+        queuedBytes.addAndGet(frame.text.length);
+        if (frames.offer(frame)) {
+            return true;
+        }
+        queuedBytes.addAndGet(-frame.text.length);
+        return false;
+    }
+
+    /**
+     * Parks the current thread while waiting for another stage.
+     *
+     * @param   park    Time to park in nanoseconds
+     * @return          Time to park the next time, twice as long up to {@link #MAX_PARK_NANOS}
+     */
+    private static long idle(final long park) {
+        LockSupport.parkNanos(park);
+        return Math.min(park * 2, MAX_PARK_NANOS);
+    }
+
+
+    /**
+     * An immutable block of terms handed from the generator to the formatter.
+     */
+    static final class Block {
+        final List<? extends Number> terms;
+        final int                    count;
+        final long                   bits;
+        final Number                 term0;
+        final Number                 term1;
+        final boolean                complete;
+
+        Block(List<? extends Number> terms, int count, long bits, Number term0, Number term1,
+              boolean complete)
+        {
+            this.terms    = terms;
+            this.count    = count;
+            this.bits     = bits;
+            this.term0    = term0;
+            this.term1    = term1;
+            this.complete = complete;
+        }
+    }
+
+
+    /**
+     * An immutable formatted frame ready to be displayed, with the last two terms of the
+     * sequence once it has been.
+     */
+    static final class Frame {
+        final byte[]  text;
+        final int     count;
+        final Number  term0;
+        final Number  term1;
+        final boolean complete;
+
+        Frame(byte[] text, int count, Number term0, Number term1, boolean complete) {
+            this.text     = text;
+            this.count    = count;
+            this.term0    = term0;
+            this.term1    = term1;
+            this.complete = complete;
+        }
+
+        /**
+         * Joins a later frame onto this one.
+         */
+        Frame merge(Frame later) {
+            byte[] joined = new byte[text.length + later.text.length];
+            System.arraycopy(text, 0, joined, 0, text.length);
+            System.arraycopy(later.text, 0, joined, text.length, later.text.length);
+            return new Frame(joined, count + later.count, later.term0, later.term1,
+                             later.complete);
+        }
+    }
+}
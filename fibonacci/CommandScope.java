@@ -0,0 +1,143 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Runs the slow parts of commands on worker threads so the event loop that applies commands is
+ * never held up by them. Each piece of work is forked with a continuation, which is handed back
+ * to the event loop with the result once the work is done. All work forked so far can be
+ * cancelled at once with {@link #cancelAll()}, after which none of its continuations run, even
+ * for work that was already finishing and could not be interrupted.
+ *
+ * Forking and cancelling may only be done on the event loop.
+ */
+final class CommandScope {
+
+    private final ExecutorService workers;
+    private final Executor        loop;
+
+    /**
+     * Work forked and not yet done.
+     */
+    private final Set<FutureTask<?>> forked = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Incremented by {@link #cancelAll()}, so continuations of cancelled work can tell. Only
+     * used on the event loop.
+     */
+    private int generation;
+
+
+
+    /**
+     * Creates a scope.
+     *
+     * @param   workers     Executor to run work on
+     * @param   loop        Event loop to run continuations on
+     */
+    CommandScope(ExecutorService workers, Executor loop) {
+        this.workers = workers;
+        this.loop    = loop;
+    }
+
+
+
+    /**
+     * Runs work on a worker thread, then runs a continuation with its result on the event loop
+     * unless the work has been cancelled in the meantime.
+     *
+     * @param   work        Slow part of a command
+     * @param   then        Continuation given the result
+     * @param   failed      Continuation given the exception, if the work throws one
+     */
+    <T> void fork(Callable<T> work, final Consumer<? super T> then,
+                  final Consumer<? super Exception> failed)
+    {
+        final int forkedIn = generation;
+        FutureTask<T> task = new FutureTask<T>(work) {
+            @Override
+            protected void done() {
+                forked.remove(this);
+                if (isCancelled()) {
+                    return;
+                }
+
+                try {
+                    loop.execute(() -> {
+                        if (forkedIn == generation) {
+                            complete(this, then, failed);
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    // Event loop has shut down, so there is nothing left to continue
+                }
+            }
+        };
+
+        forked.add(task);
+        workers.execute(task);
+    }
+
+    /**
+     * Cancels all work forked so far, interrupting any that is running.
+     */
+    void cancelAll() {
+        ++generation;
+        for (FutureTask<?> task : forked) {
+            task.cancel(true);
+        }
+    }
+
+    /**
+     * @return  Number of pieces of work still running
+     */
+    int size() {
+        return forked.size();
+    }
+
+    private static <T> void complete(FutureTask<T> task, Consumer<? super T> then,
+                                     Consumer<? super Exception> failed)
+    {
+        T result;
+        try {
+            result = task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                failed.accept((Exception)cause);
+                return;
+            }
+            throw (Error)cause;
+        }
+        then.accept(result);
+    }
+}
@@ -19,9 +19,18 @@
 package fibonacci;
 
 
+import java.io.IOException;
 import java.math.BigInteger;
-import java.util.ArrayList;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.Scanner;
@@ -31,6 +40,11 @@ import java.util.Scanner;
  * A console driver that generates Fibonacci sequences in a separate thread. The user may enter
  * commands during runtime as specified in the README file.
  *
+ * The console runs as an event loop on its single executor thread. The input thread only reads
+ * lines and posts each one as a message to the executor, where it is applied between displayed
+ * blocks, so all console state is confined to that one thread and no block is ever interrupted
+ * by a command. The time from posting a command to applying it is measured and shown by STATUS.
+ *
  * @Author      Terry Weiss
  * @Version     1.0, 14Mar2017
  */
@@ -82,11 +96,86 @@ public class Console {
      */
     public static final long DEFAULT_PERIOD = 1000;
 
+    /**
+     * Period of 0 runs the sequence in turbo mode, displaying blocks as fast as they are
+     * generated and the terminal takes them.
+     */
+    public static final long TURBO = 0;
+
+    /**
+     * Delay between draining the pipeline in turbo mode, 100 microseconds.
+     *
+     * @See TimeUnit#Microseconds
+     */
+    static final long TURBO_DELAY = 100;
+
+    /**
+     * Time each block should take to display when pacing to a rate, 50 milliseconds, so the
+     * display updates about 20 times a second.
+     */
+    static final double PACE_TICK = 0.05;
+
+    /**
+     * Time a paced display may catch up at once after falling behind, 250 milliseconds.
+     */
+    static final double PACE_BURST = 0.25;
+
+    /**
+     * Delay before checking again when paced and no block is ready, 1 millisecond.
+     *
+     * @See TimeUnit#Nanoseconds
+     */
+    static final long PACE_RETRY = TimeUnit.MILLISECONDS.toNanos(1);
+
+    /**
+     * Largest block size used when pacing to a rate.
+     */
+    static final int MAX_PACED_BLOCK_SIZE = 1 << 12;
+
     /**
      * Default block size per display is 10 terms.
      */
     public static final int DEFAULT_BLOCK_SIZE = 5;
 
+    /**
+     * Fraction of the period that generating and formatting each block may take when the block
+     * size is automatic.
+     */
+    static final double AUTO_FRACTION = 0.5;
+
+    /**
+     * Resolution of the timer that runs named jobs, 1 millisecond.
+     *
+     * @See TimeUnit#Milliseconds
+     */
+    static final long JOB_TICK = 1;
+
+    /**
+     * Number of buckets in the timer that runs named jobs, about half a second of ticks.
+     */
+    static final int JOB_WHEEL_SIZE = 512;
+
+    /**
+     * Resolution of the timer that displays blocks at a fixed period, 1 millisecond.
+     *
+     * @See TimeUnit#Milliseconds
+     */
+    static final long DISPLAY_TICK = 1;
+
+    /**
+     * Number of buckets in the timer that displays blocks, a little over one minimum period.
+     */
+    static final int DISPLAY_WHEEL_SIZE = 256;
+
+    /**
+     * Command line options, printed when they are not valid.
+     */
+    static final String USAGE =
+        "Usage: java fibonacci.Console [--interactive] [--executor name]\n"
+      + "       java fibonacci.Console [--batch] [--start a b] [--count n] [--max m] [--out file]\n"
+      + "Batch mode needs --count, --max or both.\n"
+      + "Executors: platform, virtual, fork-join, spin";
+
 
     /**
      * The sequence will not go higher than this value. Null will be indefinite.
@@ -94,26 +183,59 @@ public class Console {
     private BigInteger maxValue;
 
     /**
-     * Period between display of blocks in milliseconds. 0 will use {@link #MIN_PERIOD}.
+     * Period between display of blocks in milliseconds, or {@link #TURBO}.
      *
      * @See TimeUnit#Milliseonds
      */
     private long period;
 
     /**
-     * Current state of runtime.
+     * Paces the display to a rate instead of a period, or null to use {@link #period}.
+     */
+    private TokenBucket pacer;
+
+    /**
+     * Whether {@link #pacer} counts bytes of output rather than terms.
+     */
+    private boolean paceBytes;
+
+    /**
+     * Incremented whenever the display is rescheduled or cancelled, so a paced display that
+     * reschedules itself can tell that it has been replaced.
+     */
+    private int schedule;
+
+    /**
+     * Terms displayed per second, averaged over recent blocks, or 0 before it is measured.
+     */
+    private double termsPerSecond;
+
+    /**
+     * Time the last block was displayed, or 0 if the display has just started or resumed.
+     */
+    private long lastDisplay;
+
+    /**
+     * Time in nanoseconds between posting the last command and applying it, and the longest
+     * such time so far.
      */
-    private State state;
+    private long lastLatency;
+    private long maxLatency;
 
     /**
-     * Second-last term used.
+     * Current state of runtime. Also read by the input thread once each command is applied.
      */
-    private BigInteger term0;
+    private volatile State state;
 
     /**
-     * Last term used.
+     * Second-last term used, in the representation of the engine that generated it.
      */
-    private BigInteger term1;
+    private Number term0;
+
+    /**
+     * Last term used, in the representation of the engine that generated it.
+     */
+    private Number term1;
 
     /**
      * Last starting first term.
@@ -130,27 +252,129 @@ public class Console {
      */
     private int blockSize;
 
+    /**
+     * Whether blocks are sized to fill {@link #AUTO_FRACTION} of the period.
+     */
+    private boolean autoSize;
+
+    /**
+     * Most bytes of output in each block, or 0 for no limit.
+     */
+    private long maxBlockBytes;
+
+    /**
+     * Number representation blocks are generated in.
+     */
+    private Fibonacci.Engine engine;
+
+    /**
+     * What happens to generated blocks when the display falls behind.
+     */
+    private BlockPipeline.Policy policy;
+
+    /**
+     * Pipeline generating and formatting blocks ahead of the display while running.
+     */
+    private BlockPipeline pipeline;
+
     /**
      * Scanner utility object
      */
     private static final Scanner cin = new Scanner(System.in);
 
     /**
-     * Executor thread object
+     * Buffered output for everything the console displays. It is only flushed once a block or
+     * command is complete and the prompt has been printed.
+     */
+    private static final OutputSink out = OutputSink.stdout();
+
+    /**
+     * Threads the console runs on, chosen when it is created.
      */
-    private static final ScheduledThreadPoolExecutor sch = new ScheduledThreadPoolExecutor(1);
+    private final ExecutionBackend backend;
 
     /**
-     * Future scheduled block generation
+     * Executor thread object, which runs the console's event loop
+     */
+    private final ScheduledExecutorService sch;
+
+    /**
+     * Future scheduled block generation in turbo mode or when paced to a rate
      */
     private ScheduledFuture futureBlock;
 
+    /**
+     * Times the display of blocks at a fixed period and hands each display to {@link #sch}.
+     */
+    private final TickScheduler displayTimer;
+
+    /**
+     * Display of blocks at a fixed period, moved in place when the period changes, or null.
+     */
+    private TickScheduler.Timer displayTick;
+
+    /**
+     * Threads running the slow parts of commands.
+     */
+    private final ExecutorService workers;
 
+    /**
+     * Slow parts of commands in progress, cancelled together by STOP, RESET and EXIT.
+     */
+    private final CommandScope commands;
 
     /**
-     * Console environment constructor. Launches the environment in a stopped state.
+     * Whether the first block of a sequence is being generated.
+     */
+    private boolean starting;
+
+    /**
+     * Whether PAUSE was entered while the first block was being generated, so the sequence
+     * starts paused once the block is shown.
+     */
+    private boolean pauseAfterStart;
+
+    /**
+     * Threads shared by all named jobs.
+     */
+    private final ExecutorService jobPool;
+
+    /**
+     * Times the ticks of all named jobs and hands them to {@link #jobPool}.
+     */
+    private final TickScheduler jobTimer;
+
+    /**
+     * Named jobs running alongside the console's own sequence, by name.
+     */
+    private final Map<String, SequenceJob> jobs = new TreeMap<>();
+
+
+
+    /**
+     * Console environment constructor. Launches the environment in a stopped state on
+     * {@link ExecutionBackend#PLATFORM} threads.
      */
     public Console() {
+        this(ExecutionBackend.PLATFORM);
+    }
+
+    /**
+     * Console environment constructor. Launches the environment in a stopped state.
+     *
+     * @param   backend     Threads the console runs on
+     */
+    public Console(ExecutionBackend backend) {
+        this.backend = backend;
+        sch          = backend.newLoop();
+        workers      = backend.newWorkers();
+        commands     = new CommandScope(workers, sch);
+        jobPool      = backend.newJobPool();
+        jobTimer     = new TimingWheel("fibonacci-job-wheel", JOB_TICK, TimeUnit.MILLISECONDS,
+                                       JOB_WHEEL_SIZE, jobPool);
+        displayTimer = new TimingWheel("fibonacci-display-wheel", DISPLAY_TICK,
+                                       TimeUnit.MILLISECONDS, DISPLAY_WHEEL_SIZE, sch);
+
         state      = State.STOPPED;
         period     = DEFAULT_PERIOD;
         maxValue   = null;
@@ -159,65 +383,243 @@ public class Console {
         term0      = BigInteger.ZERO;
         term1      = BigInteger.ONE;
         blockSize  = DEFAULT_BLOCK_SIZE;
+        engine     = Fibonacci.Engine.BINARY;
+        policy     = BlockPipeline.Policy.BLOCK;
     }
 
 
 
-    private ArrayList<BigInteger> buildBlock(boolean isFirst) {
-        ArrayList<BigInteger> block;
+    /**
+     * Generates and formats the first block displayed when a sequence starts, which starts with
+     * <code>a</code> and <code>b</code>. Only uses its arguments, so it may run on any thread.
+     *
+     * @param   max         Max value, or null for no limit
+     * @return              Frame of the block, which is never complete
+     */
+    private static BlockPipeline.Frame buildBlock(Fibonacci.Engine engine, int size, Number a,
+                                                  Number b, BigInteger max)
+    {
+        long last = Long.MAX_VALUE;     // index in the block of the last term within max
+        if (max != null) {
+            last = Fibonacci.lastIndexWithin(Fibonacci.toBigInteger(a), Fibonacci.toBigInteger(b),
+                                             max);
+        }
 
-        if (isFirst) {
-            block = Fibonacci.sequence(blockSize, startTerm0, startTerm1);
-        } else {
-            block = Fibonacci.nextBlock(blockSize, term0, term1);
+        // Cut the block at the max, so no term past it is generated. A block of fewer than two
+        // terms keeps the starting terms, from which the pipeline finds nothing left to show
+        int count = (int)Math.max(0, Math.min(size - 1, last) + 1);
+        if (count < 2) {
+            List<? extends Number> block = count == 0 ? List.of() : engine.sequence(count, a, b);
+            return new BlockPipeline.Frame(BlockFormatter.format(block, count), count, a, b,
+                                           false);
         }
-        term0 = block.get(blockSize - 2);
-        term1 = block.get(blockSize - 1);
 
-        return block;
+        List<? extends Number> block = engine.sequence(count, a, b);
+        return new BlockPipeline.Frame(BlockFormatter.format(block, count), count,
+                                       block.get(count - 2), block.get(count - 1), false);
+    }
+
+    /**
+     * Finds the size of the first block after a term, within the byte limit.
+     */
+    private int firstBlockSize(Number before) {
+        int size = blockSize;
+        if (maxBlockBytes > 0) {
+            size = Math.max(2, Math.min(size, BlockPipeline.termsWithin(
+                    BlockFormatter.bitLength(before) / BlockFormatter.BITS_PER_DIGIT + 1,
+                    Fibonacci.BITS_PER_TERM / BlockFormatter.BITS_PER_DIGIT, maxBlockBytes)));
+        }
+        return size;
     }
 
     private void exit() {
+        cancelCommands();
+        stopJobs();
+        jobTimer.shutdown();
+        displayTimer.shutdown();
+        jobPool.shutdownNow();
+        workers.shutdownNow();
         sch.shutdownNow();
         state = State.EXIT;
+        out.flush();
     }
 
+    /**
+     * Stops displaying blocks. The pipeline keeps reading ahead, so the blocks are ready when
+     * the sequence is resumed.
+     */
     private void pause() {
         state = State.PAUSED;
-        futureBlock.cancel(false);
+        pauseAfterStart = starting;
+        cancelDisplay();
     }
 
     private void reset() {
+        cancelCommands();
+        stopJobs();
         stop();
         setStart(BigInteger.ZERO, BigInteger.ONE);
         maxValue = null;
     }
 
+    /**
+     * Resumes a paused sequence with the next block read ahead, displayed right away.
+     */
+    private void resume() {
+        state = State.RUNNING;
+        lastDisplay = 0;
+        if (pipeline == null) {
+            startPipeline();
+        }
+        scheduleFutureBlock(0);
+    }
+
     private void scheduleFutureBlock(long delay) {
-        Runnable generateNextBlock = new Runnable() {
+        Runnable displayNextBlock = new Runnable() {
             @Override
             public void run() {
-                System.out.println();
-                ArrayList<BigInteger> block = buildBlock(false);
-
-                printBlock(block, maxValue);
-                if (maxValue != null && term1.compareTo(maxValue) >= 0)
-                {
-                    System.out.println("Sequence completed.");
-                    stop();
-                }
-
-                System.out.print(state.prompt());
+                displayFrames();
             }
         };
 
+        ++schedule;
         if (futureBlock != null && !futureBlock.isDone()) {
             long currentDelay = futureBlock.getDelay(TimeUnit.MILLISECONDS);
             delay = Math.max(0, delay - currentDelay);
-            futureBlock.cancel(true);
+            futureBlock.cancel(false);
+        }
+        if (pacer == null && period != TURBO) {
+            // A new period moves the timer in place, counting from the last block displayed
+            if (displayTick != null) {
+                if (lastDisplay != 0) {
+                    delay = Math.max(0, delay - TimeUnit.NANOSECONDS.toMillis(
+                            System.nanoTime() - lastDisplay));
+                }
+                displayTick.reschedule(delay, period, TimeUnit.MILLISECONDS);
+            } else {
+                displayTick = displayTimer.schedule(displayNextBlock, delay, period,
+                                                    TimeUnit.MILLISECONDS,
+                                                    TickScheduler.CatchUp.BURST);
+            }
+            return;
+        }
+
+        if (displayTick != null) {
+            displayTick.cancel();
+            displayTick = null;
+        }
+        if (pacer != null) {
+            futureBlock = sch.schedule(new PacedDisplay(pacer, paceBytes, schedule), 0,
+                                       TimeUnit.NANOSECONDS);
+        } else {
+            futureBlock = sch.scheduleWithFixedDelay(displayNextBlock,
+                                                     TimeUnit.MILLISECONDS.toMicros(delay),
+                                                     TURBO_DELAY, TimeUnit.MICROSECONDS);
+        }
+    }
+
+    /**
+     * Cancels the display of blocks, whichever timer it is on.
+     */
+    private void cancelDisplay() {
+        ++schedule;
+        if (futureBlock != null) {
+            futureBlock.cancel(false);
+        }
+        if (displayTick != null) {
+            displayTick.cancel();
+            displayTick = null;
         }
-        futureBlock = sch.scheduleAtFixedRate(generateNextBlock, delay, period,
-                                                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Displays the next ready frame, followed in turbo mode by any others that are ready.
+     *
+     * @return  Last frame displayed, or null if none was ready
+     */
+    private BlockPipeline.Frame displayFrames() {
+        BlockPipeline.Frame frame = pipeline.poll();
+        if (frame == null) {
+            return null;    // Next block is not ready yet, so skip this tick
+        }
+
+        // Each frame is written under the sink's lock, and the last together with the prompt,
+        // so job output only ever lands between whole frames
+        long    shown = 0;
+        boolean first = true;
+        while (true) {
+            BlockPipeline.Frame next = null;
+            synchronized (out) {
+                if (first) {
+                    out.println();
+                    first = false;
+                }
+                out.write(frame.text);
+                shown += frame.count;
+                term0 = frame.term0;
+                term1 = frame.term1;
+                if (frame.complete) {
+                    out.println("Sequence completed.");
+                    stop();
+                } else if (isTurbo() && state == State.RUNNING) {
+                    // In turbo mode, keep going while frames are ready. Flushing each frame
+                    // blocks until the terminal has taken it, which paces the generator.
+                    next = pipeline.poll();
+                }
+
+                if (next == null) {
+                    out.print(state.prompt());
+                }
+                out.flush();
+            }
+
+            if (next == null) {
+                break;
+            }
+            frame = next;
+        }
+
+        measureRate(shown);
+        return frame;
+    }
+
+    /**
+     * Updates the average number of terms displayed per second after displaying some terms.
+     * The first display after starting or resuming only starts the clock.
+     */
+    private void measureRate(final long shown) {
+        long now = System.nanoTime();
+        if (lastDisplay != 0 && now > lastDisplay) {
+            double latest = shown * 1e9 / (now - lastDisplay);
+            double rate = termsPerSecond;
+            termsPerSecond = rate == 0 ? latest : rate + 0.25 * (latest - rate);
+        }
+        lastDisplay = now;
+    }
+
+    /**
+     * @return  Whether blocks are displayed as fast as they are generated
+     */
+    private boolean isTurbo() {
+        return period == TURBO && pacer == null;
+    }
+
+    /**
+     * Finds the block size that takes {@link #PACE_TICK} to display at the paced rate. When
+     * pacing bytes, each term is about {@link Fibonacci#BITS_PER_TERM} bits longer than the
+     * last, so the size is found with {@link BlockPipeline#termsWithin(double, double, double)}.
+     *
+     * @param   after   Term before the block
+     * @return          Number of terms in each block
+     */
+    private int pacedBlockSize(final Number after) {
+        double terms = pacer.perSecond() * PACE_TICK;
+        if (paceBytes) {
+            terms = BlockPipeline.termsWithin(
+                    BlockFormatter.bitLength(after) / BlockFormatter.BITS_PER_DIGIT + 1,
+                    Fibonacci.BITS_PER_TERM / BlockFormatter.BITS_PER_DIGIT, terms);
+        }
+        return (int)Math.max(2, Math.min(MAX_PACED_BLOCK_SIZE, terms));
     }
 
     private void setStart(BigInteger t0, BigInteger t1) {
@@ -225,46 +627,118 @@ public class Console {
         startTerm1 = t1;
     }
 
-    private void start(boolean first) {
-        try {
-            ArrayList<BigInteger> firstBlock = buildBlock(first);
-            state = State.RUNNING;
-            System.out.println(state.prompt());
-            printBlock(firstBlock, maxValue);
-        } catch (IllegalArgumentException e) {
-            System.out.println("Syntax: START [term1 term2]");
-            System.out.println(e.getMessage());
-            System.out.println("See HELP for more details.");
-            return;
+    /**
+     * Starts the sequence from its starting terms once its first block has been generated on a
+     * worker thread. Until then any current sequence carries on, and a later START, STOP or
+     * RESET cancels this one. A paused sequence resumes from the pipeline's lookahead instead.
+     */
+    private void start() {
+        final Fibonacci.Engine eng  = engine;
+        final Number           a    = startTerm0;
+        final Number           b    = startTerm1;
+        final BigInteger       max  = maxValue;
+        final int              size = firstBlockSize(b);
+
+        cancelCommands();
+        starting        = true;
+        pauseAfterStart = false;
+        commands.fork(() -> buildBlock(eng, size, a, b, max),
+                      this::showFirstBlock, this::startFailed);
+    }
+
+    private void showFirstBlock(BlockPipeline.Frame frame) {
+        starting = false;
+        state    = pauseAfterStart ? State.PAUSED : State.RUNNING;
+        lastDisplay = 0;
+
+        term0 = frame.term0;
+        term1 = frame.term1;
+        startPipeline();
+        if (state == State.RUNNING) {
+            scheduleFutureBlock(period);
         }
 
-        scheduleFutureBlock(period);
+        synchronized (out) {
+            out.println();
+            out.write(frame.text);
+            out.print(state.prompt());
+            out.flush();
+        }
+    }
+
+    private void startFailed(Exception e) {
+        starting = false;
+        out.println();
+        out.println("Syntax: START [term1 term2]");
+        out.println(e.getMessage());
+        out.println("See HELP for more details.");
+        out.print(state.prompt());
+        out.flush();
+    }
+
+    /**
+     * Cancels the slow parts of any commands still running.
+     */
+    private void cancelCommands() {
+        commands.cancelAll();
+        starting = false;
     }
 
     private void stop() {
         state = State.STOPPED;
-        futureBlock.cancel(true);
+        cancelDisplay();
+        stopPipeline();
     }
 
+    private void startPipeline() {
+        stopPipeline();
+        // Turbo mode always coalesces, so frames pile up into larger writes while the terminal
+        // is busy instead of stalling the generator
+        BlockPipeline.Policy mode = isTurbo() ? BlockPipeline.Policy.COALESCE : policy;
+        int size = blockSize;
+        if (pacer != null) {
+            size = pacedBlockSize(term1);
+        }
+        pipeline = new BlockPipeline(term0, term1, size, engine, maxValue, mode);
+        sizePipeline();
+        pipeline.start();
+    }
 
+    /**
+     * Applies the block size settings to the pipeline, if there is one. Paced blocks are sized
+     * to the rate instead, and turbo mode has no period to fill, but the byte limit always
+     * applies.
+     */
+    private void sizePipeline() {
+        if (pipeline == null) {
+            return;
+        }
+        pipeline.limitBytes(maxBlockBytes);
+        if (pacer != null) {
+            return;
+        }
+        pipeline.resize(blockSize);
+        if (autoSize && !isTurbo()) {
+            pipeline.autoSize((long)(TimeUnit.MILLISECONDS.toNanos(period) * AUTO_FRACTION));
+        } else {
+            pipeline.autoSize(0);
+        }
+    }
 
-    static void printBlock(final ArrayList<BigInteger> block, final BigInteger max) {
-        StringBuilder sb = new StringBuilder("");
-        boolean add = true;
-
-        BigInteger next;
-        for (int i = 0; i < block.size() && add; ++i) {
-            next = block.get(i);
-            if (max != null && next.compareTo(max) > 0) {
-                add = false;
-            } else {
-                sb.append(next).append(" ");
-            }
+    /**
+     * Discards any blocks generated ahead and generates them again from the last block
+     * displayed, so changed settings apply from the next block.
+     */
+    private void restartPipeline() {
+        if (pipeline != null) {
+            startPipeline();
         }
+    }
 
-        String out = sb.toString().trim();
-        if (!out.isEmpty()) {
-            System.out.println(out);
+    private void stopPipeline() {
+        if (pipeline != null) {
+            pipeline.stop();
+            pipeline = null;
         }
     }
 
@@ -286,28 +760,58 @@ public class Console {
             arg = input.substring(split+1);
         }
 
+        // A name before any value refers to a job, as in START fast 5 8
+        String[] words = arg.split(" ", 2);
+        if (isJobName(words[0]) && cmdJob(cmd, words[0], words.length > 1 ? words[1] : "")) {
+            return;
+        }
+
         switch (cmd) {
             case "help":
                 cmdHelp();
                 break;
+            case "jobs":
+                cmdJobs();
+                break;
             case "start":
                 cmdStart(arg);
                 break;
+            case "bytes":
+                cmdBytes(arg);
+                break;
+            case "engine":
+                cmdEngine(arg);
+                break;
             case "max":
                 cmdMax(arg);
                 break;
+            case "policy":
+                cmdPolicy(arg);
+                break;
+            case "size":
+                cmdSize(arg);
+                break;
             case "speed":
                 cmdSpeed(arg);
                 break;
             case "pause":
                 cmdPause();
                 break;
+            case "status":
+                cmdStatus();
+                break;
             case "stop":
                 cmdStop();
                 break;
+            case "turbo":
+                cmdSpeed("0");
+                break;
             case "reset":
                 cmdReset();
                 break;
+            case "rate":
+                cmdRate(arg);
+                break;
             case "restart":
                 cmdRestart();
                 break;
@@ -315,7 +819,7 @@ public class Console {
                 exit();
                 break;
             default:
-                System.out.println("Unrecognized command: " + cmd);
+                out.println("Unrecognized command: " + cmd);
                 break;
         }
     }
@@ -323,19 +827,51 @@ public class Console {
     private static void cmdHelp() {
         final String HELP =
 
+        "    BYTES [#]   Limits each block to about the given number of bytes of output,\n"     +
+        "                cutting it short as the terms grow. Blocks always have at least\n"     +
+        "                2 terms. If no value is given, the limit is cleared.\n\n"              +
+
+        "    ENGINE [#]  Sets the number representation terms are generated in, either\n"       +
+        "                BINARY or DECIMAL. Decimal terms are faster to display when they\n"    +
+        "                are large. If no value is given, the engine is reset to binary.\n\n"   +
+
         "    HELP        Lists each command and its description (this list)\n\n"                +
 
+        "    JOBS        Lists the named jobs, which run alongside the main sequence. A job\n"  +
+        "                is started with START name [# #] and takes its settings from the\n"    +
+        "                main sequence, then PAUSE, STOP, SPEED, MAX, and SIZE followed by\n"   +
+        "                its name apply to the job alone. Jobs are not faster than the\n"       +
+        "                minimum speed, and RESET stops them all.\n\n"                          +
+
         "    MAX [#]     Sets process to end when past given value\n\n"                         +
 
-        "    PAUSE       Pauses process if running, or message is displayed\n\n"                +
+        "    PAUSE       Pauses process if running, or message is displayed. The next\n"        +
+        "                blocks keep being prepared while paused.\n\n"                          +
+
+        "    POLICY [#]  Sets what happens to blocks generated ahead when the display falls\n"  +
+        "                behind: BLOCK waits, DROP skips to the latest block, and COALESCE\n"   +
+        "                shows several blocks at once. If no value is given, the policy is\n"   +
+        "                reset to BLOCK. Takes effect on the next start.\n\n"                   +
+
+        "    RATE [# [terms|bytes]]\n"                                                          +
+        "                Paces the display to a number of terms or bytes per second,\n"         +
+        "                choosing the block size to suit. If no unit is given, terms are\n"     +
+        "                paced. If no value is given, pacing is turned off and the speed\n"     +
+        "                is used again.\n\n"                                                    +
 
         "    RESET       Stops process and resets environment to default starting state\n\n"    +
 
         "    RESTART     If running or paused: immediately restarts from starting terms\n"      +
         "                If not running: message is displayed\n\n"                              +
 
+        "    SIZE [#]    Sets the number of terms in each block, at least 2, or AUTO to\n"      +
+        "                size each block to take half of the speed to generate, growing\n"      +
+        "                smaller as the terms grow. If no value is given, the size is\n"        +
+        "                reset to default.\n\n"                                                 +
+
         "    SPEED [#]   Changes the time in seconds allotted for each iteration. If no\n"      +
-        "                value is given, the speed is reset to default.\n\n"                    +
+        "                value is given, the speed is reset to default. 0 is the same as\n"     +
+        "                TURBO.\n\n"                                                            +
 
         "    START [# #] If values are negative or the second is less than the first, an\n"     +
         "                    error message is displayed.\n"                                     +
@@ -344,74 +880,368 @@ public class Console {
         "                    no value is given, message is displayed\n"                         +
         "                If paused, process resumes at given value or last value.\n\n"          +
 
-        "    STOP        Stops the process if running, or displays a message\n";
+        "    STATUS      Shows how long commands wait to be applied, how many terms are left\n" +
+        "                before the max value, and about how long they will take to display\n"  +
+        "                at the current speed\n\n"                                              +
+
+        "    STOP        Stops the process if running, or displays a message\n\n"               +
+
+        "    TURBO       Displays blocks as fast as they are generated, several at a time\n"    +
+        "                when the terminal falls behind. SPEED returns to a fixed period.\n";
 
-        System.out.println(HELP);
+        out.println(HELP);
     }
 
-    private void cmdMax(String arg) {
+    private void cmdBytes(String arg) {
         if (arg.isEmpty()) {
-            maxValue = null;
-            System.out.println("Max value has been cleared.");
+            maxBlockBytes = 0;
+            out.println("Byte limit has been cleared.");
+        } else {
+            long limit;
+            try {
+                limit = Long.parseLong(arg);
+            } catch (NumberFormatException e) {
+                limit = 0;
+            }
+            if (limit <= 0) {
+                out.println("Syntax: BYTES [limit]");
+                out.println("Limit must be a positive integer. See HELP for details.");
+                return;
+            }
+            maxBlockBytes = limit;
+            out.println("Blocks limited to " + limit + " bytes.");
+        }
+
+        sizePipeline();
+    }
+
+    private void cmdEngine(String arg) {
+        if (arg.isEmpty()) {
+            engine = Fibonacci.Engine.BINARY;
+        } else {
+            try {
+                engine = Fibonacci.Engine.valueOf(arg.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                out.println("Syntax: ENGINE [binary|decimal]");
+                return;
+            }
+        }
+
+        restartPipeline();
+        out.println("Engine changed to " + engine.name().toLowerCase() + ".");
+    }
+
+    /**
+     * Applies a command to a named job.
+     *
+     * @return  Whether the command applies to jobs
+     */
+    private boolean cmdJob(String cmd, String name, String arg) {
+        SequenceJob job = jobs.get(name);
+        if (job == null && !cmd.equals("start")) {
+            switch (cmd) {
+                case "pause":
+                case "stop":
+                case "speed":
+                case "max":
+                case "size":
+                    out.println("No job named " + name + ".");
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+        switch (cmd) {
+            case "start":
+                jobStart(name, job, arg);
+                break;
+            case "pause":
+                if (job.state() != State.RUNNING) {
+                    out.println("Job " + name + " is not running.");
+                } else {
+                    job.pause();
+                    out.println("Pausing job " + name + " ...");
+                }
+                break;
+            case "stop":
+                job.stop();
+                jobs.remove(name);
+                out.println("Job " + name + " has been stopped.");
+                break;
+            case "speed":
+                try {
+                    double seconds = arg.isEmpty() ? DEFAULT_PERIOD / 1000.0
+                                                   : Double.parseDouble(arg);
+                    long jobPeriod = Math.max(MIN_PERIOD, (long)(seconds * 1000));
+                    job.setPeriod(jobPeriod);
+                    out.println("Job " + name + " speed changed to " + jobPeriod + "ms.");
+                } catch (NumberFormatException e) {
+                    out.println("Syntax: SPEED name [period]");
+                }
+                break;
+            case "max":
+                try {
+                    job.setMax(arg.isEmpty() ? null : new BigInteger(arg));
+                    out.println("Job " + name + " max value changed.");
+                } catch (NumberFormatException e) {
+                    out.println("Syntax: MAX name [max value]");
+                }
+                break;
+            case "size":
+                try {
+                    int size = arg.isEmpty() ? DEFAULT_BLOCK_SIZE : Integer.parseInt(arg);
+                    if (size < 2) {
+                        throw new NumberFormatException();
+                    }
+                    job.setBlockSize(size);
+                    out.println("Job " + name + " block size changed to " + size + " terms.");
+                } catch (NumberFormatException e) {
+                    out.println("Syntax: SIZE name [size]");
+                }
+                break;
+            default:
+                return false;
+        }
+        return true;
+    }
+
+    private void jobStart(String name, SequenceJob job, String arg) {
+        if (arg.isEmpty() && job != null) {
+            // A job that completed or failed stays listed, stopped, and starts over
+            State jobState = job.state();
+            if (jobState == State.RUNNING) {
+                out.println("Job " + name + " is already running.");
+            } else {
+                job.resume();
+                out.println((jobState == State.STOPPED ? "Restarting job " : "Resuming job ")
+                            + name + " ...");
+            }
+            return;
+        }
+
+        BigInteger t0 = Fibonacci.DEFAULT_0, t1 = Fibonacci.DEFAULT_1;
+        if (!arg.isEmpty()) {
+            String[] terms = arg.split(" ");
+            try {
+                if (terms.length != 2) {
+                    throw new NumberFormatException();
+                }
+                t0 = new BigInteger(terms[0]);
+                t1 = new BigInteger(terms[1]);
+            } catch (NumberFormatException e) {
+                out.println("Syntax: START name [term1 term2]");
+                return;
+            }
         }
 
+        if (job == null) {
+            job = new SequenceJob(name, jobTimer, out, engine, Math.max(MIN_PERIOD, period),
+                                  maxValue, blockSize);
+        }
         try {
-            maxValue = new BigInteger(arg);
-        } catch (NumberFormatException e) {
-            System.out.println("Syntax: MAX [max value]");
-            System.out.println("Max value must be an integer. See HELP for details.");
+            job.start(t0, t1);
+        } catch (IllegalArgumentException e) {
+            out.println("Syntax: START name [term1 term2]");
+            out.println(e.getMessage());
+            return;
+        }
+        jobs.put(name, job);
+        out.println("Starting job " + name + " ...");
+    }
+
+    private void cmdJobs() {
+        if (jobs.isEmpty()) {
+            out.println("There are no jobs.");
+            return;
+        }
+        for (SequenceJob job : jobs.values()) {
+            out.println(job.describe());
+        }
+    }
+
+    private void stopJobs() {
+        for (SequenceJob job : jobs.values()) {
+            job.stop();
         }
+        jobs.clear();
+    }
+
+    /**
+     * @return  Whether a word is the name of a job rather than a value
+     */
+    private static boolean isJobName(String word) {
+        return !word.isEmpty() && Character.isLetter(word.charAt(0)) && !word.equals("auto");
+    }
+
+    private void cmdMax(String arg) {
+        if (arg.isEmpty()) {
+            maxValue = null;
+            out.println("Max value has been cleared.");
+        } else {
+            try {
+                maxValue = new BigInteger(arg);
+            } catch (NumberFormatException e) {
+                out.println("Syntax: MAX [max value]");
+                out.println("Max value must be an integer. See HELP for details.");
+                return;
+            }
+        }
+
+        restartPipeline();
     }
 
     private void cmdPause() {
         if (state != State.RUNNING) {
-            System.out.println("No sequence is currently running.");
+            out.println("No sequence is currently running.");
             return;
         }
 
         pause();
-        System.out.println("Pausing sequence ...");
+        out.println("Pausing sequence ...");
+    }
+
+    private void cmdPolicy(String arg) {
+        switch (arg) {
+            case "":
+            case "block":
+                policy = BlockPipeline.Policy.BLOCK;
+                break;
+            case "drop":
+                policy = BlockPipeline.Policy.DROP_OLDEST;
+                break;
+            case "coalesce":
+                policy = BlockPipeline.Policy.COALESCE;
+                break;
+            default:
+                out.println("Syntax: POLICY [block|drop|coalesce]");
+                return;
+        }
+
+        out.println("Policy changed to " + policy.name().toLowerCase() + ".");
+    }
+
+    private void cmdRate(String arg) {
+        if (arg.isEmpty()) {
+            if (pacer != null) {
+                pacer = null;
+                restartPipeline();
+                if (state == State.RUNNING) {
+                    scheduleFutureBlock(period);
+                }
+            }
+            out.println("Rate pacing has been turned off.");
+            return;
+        }
+
+        String[] args = arg.split(" ");
+        TokenBucket bucket;
+        boolean bytes;
+        try {
+            if (args.length > 2 || (args.length == 2 && !args[1].equals("terms")
+                                                     && !args[1].equals("bytes"))) {
+                throw new IllegalArgumentException();
+            }
+            bytes  = args.length == 2 && args[1].equals("bytes");
+            bucket = new TokenBucket(Double.parseDouble(args[0]), PACE_BURST);
+        } catch (IllegalArgumentException e) {
+            out.println("Syntax: RATE [rate [terms|bytes]]");
+            out.println("Rate must be a positive number. See HELP for details.");
+            return;
+        }
+
+        pacer     = bucket;
+        paceBytes = bytes;
+        restartPipeline();
+        if (state == State.RUNNING) {
+            scheduleFutureBlock(0);
+        }
+        out.println("Rate changed to " + args[0] + (bytes ? " bytes" : " terms")
+                    + " per second.");
     }
 
     private void cmdReset() {
         reset();
-        System.out.println("Environment reset.");
+        out.println("Environment reset.");
     }
 
     private void cmdRestart() {
         if (state == State.STOPPED) {
-            System.out.println("No sequence is currently active.");
+            out.println("No sequence is currently active.");
             return;
         }
 
         if (state == State.RUNNING) {
-            System.out.println("Stopping current sequence ...");
-            futureBlock.cancel(true);
+            out.println("Stopping current sequence ...");
+            cancelDisplay();
         } else if (state == State.PAUSED) {
             setStart(startTerm0, startTerm1);
-            System.out.println("Restarting current sequence ...");
+            out.println("Restarting current sequence ...");
+        }
+
+        start();
+    }
+
+    private void cmdSize(String arg) {
+        if (arg.isEmpty()) {
+            blockSize = DEFAULT_BLOCK_SIZE;
+            autoSize  = false;
+        } else if (arg.equals("auto")) {
+            autoSize  = true;
+        } else {
+            int size;
+            try {
+                size = Integer.parseInt(arg);
+            } catch (NumberFormatException e) {
+                size = 0;
+            }
+            if (size < 2) {
+                out.println("Syntax: SIZE [size|auto]");
+                out.println("Size must be an integer of at least 2. See HELP for details.");
+                return;
+            }
+            blockSize = size;
+            autoSize  = false;
         }
 
-        start(true);
+        sizePipeline();
+        if (autoSize) {
+            out.println("Block size changed to auto.");
+        } else {
+            out.println("Block size changed to " + blockSize + " terms.");
+        }
     }
 
     private void cmdSpeed(String arg) {
         double input;
         if (arg.isEmpty()) {
-            input = MIN_PERIOD;
+            input = DEFAULT_PERIOD / 1000.0;
         } else {
             try {
                 input = Double.parseDouble(arg);
             } catch (NumberFormatException e) {
-                System.out.println("Syntax: SPEED [period]");
-                System.out.println("Period must be a number. See HELP for details.");
+                out.println("Syntax: SPEED [period]");
+                out.println("Period must be a number. See HELP for details.");
                 return;
             }
         }
 
+        boolean wasTurbo = isTurbo();
+        boolean wasPaced = pacer != null;
+        pacer = null;
         calculatePeriod(input);
-        System.out.println("Speed changed to " + period + "ms.");
+        if (period == TURBO) {
+            out.println("Speed changed to turbo.");
+        } else {
+            out.println("Speed changed to " + period + "ms.");
+        }
 
+        // The pipeline only coalesces in turbo mode, and uses its own block size when paced
+        if (wasTurbo != isTurbo() || wasPaced) {
+            restartPipeline();
+        } else {
+            sizePipeline();
+        }
         if (state == State.RUNNING) {
             scheduleFutureBlock(period);
         }
@@ -420,16 +1250,18 @@ public class Console {
     private void cmdStart(String args) {
         if (args.isEmpty()) {
             if (state == State.RUNNING) {
-                System.out.println("The sequence is already running. "
+                out.println("The sequence is already running. "
                                    + "Speed can be adjusted with SPEED.");
                 return;
             }
 
             if (state == State.PAUSED) {
-                System.out.println("Resuming sequence ...");
-                setStart(term0, term1);
+                out.println("Resuming sequence ...");
+                setStart(Fibonacci.toBigInteger(term0), Fibonacci.toBigInteger(term1));
+                resume();
+                return;
             } else if (state == State.STOPPED) {
-                System.out.println("Starting standard Fibonacci sequence ...");
+                out.println("Starting standard Fibonacci sequence ...");
                 startTerm0 = Fibonacci.DEFAULT_0;
                 startTerm1 = Fibonacci.DEFAULT_1;
             }
@@ -438,7 +1270,7 @@ public class Console {
         else {
             String[] terms = args.split(" ");
             if (terms.length != 2) {
-                System.out.println("Syntax: START [term1 term2]");
+                out.println("Syntax: START [term1 term2]");
                 return;
             }
 
@@ -447,8 +1279,8 @@ public class Console {
                 t0 = new BigInteger(terms[0]);
                 t1 = new BigInteger(terms[1]);
             } catch (NumberFormatException e) {
-                System.out.println("Syntax: START [term1 term2]");
-                System.out.println("Terms must be integers. See HELP for more details.");
+                out.println("Syntax: START [term1 term2]");
+                out.println("Terms must be integers. See HELP for more details.");
                 return;
             }
 
@@ -456,34 +1288,168 @@ public class Console {
             startTerm1 = t1;
         }
 
-        boolean firstBlock = state == State.STOPPED;
-        start(firstBlock);
+        // New terms always start over, discarding any blocks read ahead
+        start();
     }
 
-    private void cmdStop() {
+    private void cmdStatus() {
+        out.println(String.format("Command latency: %.3fms, longest %.3fms (%s executor)",
+                                  lastLatency / 1e6, maxLatency / 1e6, backend));
+        if (commands.size() > 0) {
+            out.println("Commands in progress: " + commands.size());
+        }
+
         if (state == State.STOPPED) {
-            System.out.println("There is currently no sequence running.");
+            out.println("No sequence is currently active.");
+            return;
+        } else if (maxValue == null) {
+            out.println("No max value is set, so the sequence will not end.");
+            return;
+        }
+
+        // Finding the max index calculates a term as large as the max, so do it off the loop
+        final Number     a    = term0;
+        final Number     b    = term1;
+        final BigInteger max  = maxValue;
+        final double     rate = termsPerSecond;
+        commands.fork(() -> Fibonacci.lastIndexWithin(Fibonacci.toBigInteger(a),
+                                                      Fibonacci.toBigInteger(b), max),
+                      last -> {
+                          out.println();
+                          showRemaining(last, rate);
+                          out.print(state.prompt());
+                          out.flush();
+                      },
+                      e -> {
+                          out.println();
+                          out.println(e.getMessage());
+                          out.print(state.prompt());
+                          out.flush();
+                      });
+    }
+
+    private static void showRemaining(long last, double rate) {
+        if (last == Long.MAX_VALUE) {
+            out.println("Every term is 0, so the sequence will not end.");
+            return;
+        }
+
+        long remaining = Math.max(0, last - 1);
+        out.println("Terms remaining: " + remaining);
+        if (rate > 0) {
+            out.println(String.format("Estimated time: %.1f seconds", remaining / rate));
+        } else {
+            out.println("Estimated time: unknown until more blocks are displayed");
+        }
+    }
+
+    private void cmdStop() {
+        boolean wasStarting = starting;
+        cancelCommands();
+        if (state == State.STOPPED && !wasStarting) {
+            out.println("There is currently no sequence running.");
             return;
         }
 
         stop();
-        System.out.println("The sequence has been stopped.");
+        out.println("The sequence has been stopped.");
+    }
+
+
+
+    /**
+     * Displays frames no faster than a token bucket allows, rescheduling itself for when the
+     * bucket has refilled. Each block is displayed as soon as the bucket is out of debt, and
+     * is then paid for by its terms or bytes.
+     */
+    private final class PacedDisplay implements Runnable {
+        private final TokenBucket bucket;
+        private final boolean     bytes;
+        private final int         generation;
+
+        PacedDisplay(TokenBucket bucket, boolean bytes, int generation) {
+            this.bucket     = bucket;
+            this.bytes      = bytes;
+            this.generation = generation;
+        }
+
+        @Override
+        public void run() {
+            long wait = bucket.delayNanos();
+            if (wait == 0) {
+                BlockPipeline.Frame frame = displayFrames();
+                if (frame == null) {
+                    wait = PACE_RETRY;
+                } else {
+                    bucket.take(bytes ? frame.text.length : frame.count);
+                    wait = bucket.delayNanos();
+
+                    // Bytes per term grow with the terms, so keep blocks to one tick of bytes
+                    if (bytes && pipeline != null) {
+                        pipeline.resize(pacedBlockSize(frame.term1));
+                    }
+                }
+            }
+
+            if (generation == schedule && state == State.RUNNING) {
+                futureBlock = sch.schedule(this, wait, TimeUnit.NANOSECONDS);
+            }
+        }
     }
 
 
 
     public void run() {
-        System.out.println("                          Fibonacci Sequence Generator");
-        System.out.println("    Type HELP for more information.");
+        out.println("                          Fibonacci Sequence Generator");
+        out.println("    Type HELP for more information.");
+        out.print(state.prompt());
+        out.flush();
 
         while (state != State.EXIT) {
-            System.out.print(state.prompt());
             String cmd = cin.nextLine();
-            command(cmd);
+            await(post(cmd));
+        }
+    }
+
+    /**
+     * Posts a command to the event loop, to be applied after any block being displayed.
+     *
+     * @param   cmd     Command line as entered
+     * @return          Future completed once the command has been applied
+     */
+    private Future<?> post(final String cmd) {
+        final long posted = System.nanoTime();
+        return sch.submit(new Runnable() {
+            @Override
+            public void run() {
+                lastLatency = System.nanoTime() - posted;
+                maxLatency  = Math.max(maxLatency, lastLatency);
+
+                command(cmd);
+                out.print(state.prompt());
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Waits for a posted command to be applied before reading the next one.
+     */
+    private static void await(Future<?> applied) {
+        try {
+            applied.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
         }
     }
 
     private void calculatePeriod(double newPeriod) {
+        if (newPeriod == 0) {
+            period = TURBO;
+            return;
+        }
         period = (int)(newPeriod * 1000);
 
         if (period < MIN_PERIOD) {
@@ -494,8 +1460,126 @@ public class Console {
 
 
 
+    /**
+     * Runs a console, or writes a sequence in batch mode. Batch mode is chosen by any of the
+     * batch options, or when standard input or output is not a terminal, unless
+     * <code>--interactive</code> is given. Batch mode needs <code>--count</code> or
+     * <code>--max</code>, so a run that is piped or redirected never writes forever by
+     * accident. The options are described by {@link #USAGE}.
+     */
     public static void main(String[] args) {
-        Console console = new Console();
+        ExecutionBackend backend = ExecutionBackend.PLATFORM;
+        boolean batch = System.console() == null;
+        BigInteger a = Fibonacci.DEFAULT_0, b = Fibonacci.DEFAULT_1;
+        long count = -1;
+        BigInteger max = null;
+        String file = null;
+
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                String option = args[i];
+                if (option.equals("--interactive")) {
+                    batch = false;
+                    continue;
+                } else if (option.equals("--batch")) {
+                    batch = true;
+                    continue;
+                }
+
+                switch (option) {
+                    case "--executor":
+                        backend = ExecutionBackend.parse(optionValue(args, ++i, option));
+                        break;
+                    case "--start":
+                        a = new BigInteger(optionValue(args, ++i, option));
+                        b = new BigInteger(optionValue(args, ++i, option));
+                        batch = true;
+                        break;
+                    case "--count":
+                        count = Long.parseLong(optionValue(args, ++i, option));
+                        batch = true;
+                        break;
+                    case "--max":
+                        max = new BigInteger(optionValue(args, ++i, option));
+                        batch = true;
+                        break;
+                    case "--out":
+                        file = optionValue(args, ++i, option);
+                        batch = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option: " + option);
+                }
+            }
+
+            if (batch && count < 0 && max == null) {
+                throw new IllegalArgumentException("Batch mode needs --count or --max, "
+                        + "or --interactive to read commands");
+            }
+        } catch (IllegalArgumentException e) {  // Includes NumberFormatException
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        if (batch) {
+            System.exit(runBatch(a, b, count, max, file));
+        }
+
+        Console console = new Console(backend);
         console.run();
     }
+
+    /**
+     * Finds the value of a command line option. If the arguments end before it, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   i       Index of the value in the arguments
+     * @param   option  Option the value belongs to
+     * @return          Value of the option
+     */
+    private static String optionValue(String[] args, int i, String option) {
+        if (i >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + option);
+        }
+        return args[i];
+    }
+
+    /**
+     * Writes a sequence in batch mode.
+     *
+     * @param   file    Path of the file to write, or null for standard output
+     * @return          Exit status, 0 unless the terms are invalid or the output fails
+     */
+    private static int runBatch(BigInteger a, BigInteger b, long count, BigInteger max,
+                                String file)
+    {
+        Batch batch;
+        try {
+            batch = new Batch(a, b, count, max);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            return 2;
+        }
+
+        if (file == null) {
+            batch.write(out);
+            return out.checkError() ? 1 : 0;   // Usually the reader closed the pipe early
+        }
+
+        try (FileChannel channel = FileChannel.open(Paths.get(file), StandardOpenOption.CREATE,
+                                                    StandardOpenOption.TRUNCATE_EXISTING,
+                                                    StandardOpenOption.WRITE))
+        {
+            OutputSink sink = new OutputSink(channel, OutputSink.DEFAULT_BUFFER_SIZE);
+            batch.write(sink);
+            if (sink.checkError()) {
+                throw new IOException("Write failed");
+            }
+        } catch (IOException e) {
+            System.err.println("Cannot write " + file + " (" + e + ")");
+            return 1;
+        }
+        return 0;
+    }
 }
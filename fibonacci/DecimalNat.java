@@ -0,0 +1,262 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * An immutable non-negative integer of any size kept in decimal. The value is an array of limbs
+ * in base 10^18, least significant first, so adding two values is linear and printing a value
+ * only copies the digits of each limb instead of converting between radixes. The sequence only
+ * ever needs addition, so this is the cheaper representation whenever every term is printed.
+ */
+public final class DecimalNat extends Number implements Comparable<DecimalNat> {
+
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Number of decimal digits in each limb.
+     */
+    static final int LIMB_DIGITS = 18;
+
+    /**
+     * Base of each limb, 10^18.
+     */
+    static final long BASE = 1_000_000_000_000_000_000L;
+
+    /**
+     * Zero, which has no limbs.
+     */
+    public static final DecimalNat ZERO = new DecimalNat(new long[0]);
+
+    /**
+     * Limbs of the value, least significant first, with no leading zero limbs.
+     */
+    private final long[] limbs;
+
+
+
+    private DecimalNat(final long[] limbs) {
+        this.limbs = limbs;
+    }
+
+    /**
+     * Converts a non-negative {@link BigInteger} to decimal. If the value is negative, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   value   Value to convert
+     * @return          Decimal value
+     */
+    public static DecimalNat valueOf(BigInteger value) {
+        if (value.signum() < 0) {
+            throw new IllegalArgumentException("Value must be non-negative: " + value);
+        }
+        return parse(value.toString());
+    }
+
+    /**
+     * Converts any number used for sequence terms to decimal, returning it unchanged if it is
+     * already a {@link DecimalNat}.
+     *
+     * @param   value   {@link DecimalNat} or {@link BigInteger}
+     * @return          Decimal value
+     */
+    public static DecimalNat valueOf(Number value) {
+        if (value instanceof DecimalNat) {
+            return (DecimalNat)value;
+        }
+        return valueOf((BigInteger)value);
+    }
+
+    private static DecimalNat parse(String digits) {
+        if (digits.equals("0")) {
+            return ZERO;
+        }
+
+        long[] limbs = new long[(digits.length() + LIMB_DIGITS - 1) / LIMB_DIGITS];
+        int end = digits.length();
+        for (int i = 0; i < limbs.length; ++i) {
+            int start = Math.max(0, end - LIMB_DIGITS);
+            limbs[i] = Long.parseLong(digits, start, end, 10);
+            end = start;
+        }
+        return new DecimalNat(limbs);
+    }
+
+
+
+    /**
+     * Adds another decimal value to this one.
+     *
+     * @param   other   Value to add
+     * @return          New value of the sum
+     */
+    public DecimalNat add(DecimalNat other) {
+        long[] longer  = limbs.length >= other.limbs.length ? limbs : other.limbs;
+        long[] shorter = longer == limbs ? other.limbs : limbs;
+
+        // A carry out of the top limb only happens when the sum gains a limb, which is rare, so
+        // the sum is sized to the longer value and only grown then
+        long[] sum = new long[longer.length];
+        long carry = 0;
+        int i = 0;
+        for (; i < shorter.length; ++i) {
+            long s = longer[i] + shorter[i] + carry;
+            carry = s >= BASE ? 1 : 0;
+            sum[i] = s - carry * BASE;
+        }
+        for (; i < longer.length; ++i) {
+            long s = longer[i] + carry;
+            carry = s >= BASE ? 1 : 0;
+            sum[i] = s - carry * BASE;
+        }
+
+        if (carry != 0) {
+            sum = Arrays.copyOf(sum, longer.length + 1);
+            sum[i] = carry;
+        }
+        return new DecimalNat(sum);
+    }
+
+    /**
+     * @return  Number of decimal digits in the value
+     */
+    public long digitCount() {
+        if (limbs.length == 0) {
+            return 1;
+        }
+        long top = limbs[limbs.length - 1];
+        int topDigits = 1;
+        for (long t = top; t >= 10; t /= 10) {
+            ++topDigits;
+        }
+        return (long)(limbs.length - 1) * LIMB_DIGITS + topDigits;
+    }
+
+    /**
+     * Writes the decimal digits of the value to an array of ASCII bytes. Each limb is copied
+     * digit by digit, so this is linear in the number of digits.
+     *
+     * @param   out     Array with at least {@link #digitCount()} bytes from <code>offset</code>
+     * @param   offset  Index of the first digit
+     * @return          Index after the last digit
+     */
+    public int writeAscii(byte[] out, int offset) {
+        int end = offset + (int)digitCount();
+        int at = end;
+        for (int i = 0; i < limbs.length - 1; ++i) {
+            long limb = limbs[i];
+            for (int d = 0; d < LIMB_DIGITS; ++d) {
+                out[--at] = (byte)('0' + limb % 10);
+                limb /= 10;
+            }
+        }
+
+        long top = limbs.length == 0 ? 0 : limbs[limbs.length - 1];
+        do {
+            out[--at] = (byte)('0' + top % 10);
+            top /= 10;
+        } while (top != 0);
+
+        return end;
+    }
+
+    /**
+     * Appends the decimal digits of the value to a {@link StringBuilder}.
+     *
+     * @param   sb  Builder to append to
+     * @return      The same builder
+     */
+    public StringBuilder appendTo(StringBuilder sb) {
+        if (limbs.length == 0) {
+            return sb.append('0');
+        }
+
+        sb.append(limbs[limbs.length - 1]);
+        for (int i = limbs.length - 2; i >= 0; --i) {
+            String limb = Long.toString(limbs[i]);
+            for (int pad = limb.length(); pad < LIMB_DIGITS; ++pad) {
+                sb.append('0');
+            }
+            sb.append(limb);
+        }
+        return sb;
+    }
+
+    /**
+     * Converts the value back to binary.
+     *
+     * @return  Value as a {@link BigInteger}
+     */
+    public BigInteger toBigInteger() {
+        return new BigInteger(toString());
+    }
+
+    @Override
+    public int compareTo(DecimalNat other) {
+        if (limbs.length != other.limbs.length) {
+            return limbs.length < other.limbs.length ? -1 : 1;
+        }
+        for (int i = limbs.length - 1; i >= 0; --i) {
+            if (limbs[i] != other.limbs[i]) {
+                return limbs[i] < other.limbs[i] ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof DecimalNat && compareTo((DecimalNat)o) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(limbs);
+    }
+
+    @Override
+    public String toString() {
+        byte[] digits = new byte[(int)digitCount()];
+        writeAscii(digits, 0);
+        return new String(digits, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public int intValue() {
+        return toBigInteger().intValue();
+    }
+
+    @Override
+    public long longValue() {
+        return toBigInteger().longValue();
+    }
+
+    @Override
+    public float floatValue() {
+        return toBigInteger().floatValue();
+    }
+
+    @Override
+    public double doubleValue() {
+        return toBigInteger().doubleValue();
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.lang.reflect.Method;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Threads a console runs on, chosen when it starts. Each backend supplies the console's event
+ * loop, which must run one task at a time, the workers that run the slow parts of commands, and
+ * the pool that runs the ticks of named jobs. They trade latency against CPU: the spinning loop
+ * applies commands and displays blocks with the least jitter, but keeps a core busy all the time.
+ *
+ * Virtual threads are only in Java 21 and later. On earlier runtimes {@link #VIRTUAL} falls back
+ * to the platform threads of {@link #PLATFORM}.
+ */
+public enum ExecutionBackend {
+
+    /**
+     * A platform thread for the loop, which sleeps until its next task, a thread per command
+     * and a thread per core for jobs. This is the default. Commands run on virtual threads
+     * where the runtime has them, since they mostly wait, and on platform threads otherwise.
+     */
+    PLATFORM,
+
+    /**
+     * Virtual threads for everything, suited to many light jobs that spend most of their time
+     * waiting for their next tick.
+     */
+    VIRTUAL,
+
+    /**
+     * A platform thread for the loop, and work-stealing pools with a thread per core for
+     * commands and jobs, suited to heavy generation on many cores.
+     */
+    FORK_JOIN,
+
+    /**
+     * A dedicated thread for the loop that spins waiting for its next task instead of sleeping,
+     * for the lowest latency and jitter. It needs a core to itself. Commands and jobs run as in
+     * {@link #PLATFORM}.
+     */
+    SPIN;
+
+
+
+    /**
+     * Finds a backend by name, ignoring case and with a hyphen allowed in place of an
+     * underscore. If there is no backend of that name, an {@link IllegalArgumentException} is
+     * thrown.
+     *
+     * @param   name    Name of the backend, such as <code>fork-join</code>
+     * @return          Backend of that name
+     */
+    public static ExecutionBackend parse(String name) {
+        try {
+            return valueOf(name.trim().replace('-', '_').toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("Unknown executor: " + name);
+        }
+    }
+
+    /**
+     * @return  Name of the backend as it is entered
+     */
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT).replace('_', '-');
+    }
+
+
+
+    /**
+     * Creates an event loop, which runs one task at a time in the order they are due.
+     *
+     * @return  Single-threaded scheduler
+     */
+    ScheduledExecutorService newLoop() {
+        switch (this) {
+            case VIRTUAL:
+                ThreadFactory virtual = virtualThreadFactory("fibonacci-loop");
+                if (virtual != null) {
+                    return new ScheduledThreadPoolExecutor(1, virtual);
+                }
+                return new ScheduledThreadPoolExecutor(1);
+            case SPIN:
+                return new SpinningScheduler("fibonacci-spin");
+            default:
+                return new ScheduledThreadPoolExecutor(1);
+        }
+    }
+
+    /**
+     * Creates the executor that runs the slow parts of commands.
+     *
+     * @return  Executor whose tasks may be interrupted to cancel them
+     */
+    ExecutorService newWorkers() {
+        switch (this) {
+            case FORK_JOIN:
+                return newForkJoinPool();
+            default:
+                ExecutorService virtual = newVirtualPool("fibonacci-command");
+                return virtual != null ? virtual : newCachedPool("fibonacci-command-");
+        }
+    }
+
+    /**
+     * Creates the executor that runs the ticks of named jobs.
+     *
+     * @return  Executor shared by all jobs
+     */
+    ExecutorService newJobPool() {
+        switch (this) {
+            case VIRTUAL:
+                ExecutorService virtual = newVirtualPool("fibonacci-job");
+                return virtual != null ? virtual : newFixedPool("fibonacci-job-");
+            case FORK_JOIN:
+                return newForkJoinPool();
+            default:
+                return newFixedPool("fibonacci-job-");
+        }
+    }
+
+
+
+    private static ExecutorService newCachedPool(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    private static ExecutorService newFixedPool(final String prefix) {
+        final AtomicInteger count = new AtomicInteger();
+        return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), task -> {
+            Thread thread = new Thread(task, prefix + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Creates a work-stealing pool that runs tasks in the order they are submitted, since jobs
+     * and commands are never joined.
+     */
+    private static ExecutorService newForkJoinPool() {
+        return new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+                                ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+    }
+
+    /**
+     * Creates an executor that starts a new virtual thread for each task.
+     *
+     * @param   name    Name of the threads
+     * @return          Thread-per-task executor, or null if the runtime has no virtual threads
+     */
+    private static ExecutorService newVirtualPool(String name) {
+        ThreadFactory virtual = virtualThreadFactory(name);
+        if (virtual == null) {
+            return null;
+        }
+
+        try {
+            Method create = Executors.class.getMethod("newThreadPerTaskExecutor",
+                                                      ThreadFactory.class);
+            return (ExecutorService)create.invoke(null, virtual);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Builds a factory of virtual threads by reflection, so the console still compiles and runs
+     * on runtimes without them.
+     *
+     * @param   name    Name of the threads
+     * @return          Factory of virtual threads, or null if the runtime has none
+     */
+    private static ThreadFactory virtualThreadFactory(String name) {
+        try {
+            Class<?> builder = Class.forName("java.lang.Thread$Builder");
+            Object virtual = Thread.class.getMethod("ofVirtual").invoke(null);
+            virtual = builder.getMethod("name", String.class).invoke(virtual, name);
+            Method factory = builder.getMethod("factory");
+            return (ThreadFactory)factory.invoke(virtual);
+        } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+}
@@ -20,6 +20,7 @@ package fibonacci;
 
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.List;
 
 /**
  * A utility class that statelessly calculates the Fibonacci sequence. By default, the first two
@@ -29,12 +30,67 @@ import java.util.ArrayList;
  * Change Log:
  * v1.1, 15Mar2017, Terry Weiss:
  *     - Changed int representation to BigInteger. I didn't think how fast the sequence grew.
+ * v1.2, 16Oct2026:
+ *     - Random access with at() uses fast doubling instead of stepping through every term.
+ *     - Added long term indices to at() and block(), with memory checks before work starts.
+ *     - Terms that fit in a long are calculated with primitive arithmetic.
+ *     - Added modular at(), nextBlock(), and sequence() using long arithmetic.
+ *     - Added decimal nextBlock() and sequence(), selectable through Engine.
+ *     - Added lastIndexWithin() to find where a sequence passes a max value up front.
+ *     - Binary nextBlock(), sequence(), and block() return lazy lists that only calculate
+ *       the terms that are read.
  *
  * @Author      Terry Weiss
- * @Version     1.1, 15Mar2017
+ * @Version     1.2, 16Oct2026
  */
 public final class Fibonacci {
 
+    /**
+     * Number representations that blocks of terms may be generated in. Terms passed to an
+     * engine may be in either representation and are converted when needed.
+     */
+    public enum Engine {
+        /**
+         * Terms are {@link BigInteger} values, which are fastest to add but need a radix
+         * conversion to be printed.
+         */
+        BINARY {
+            @Override
+            public List<? extends Number> nextBlock(int length, Number a, Number b) {
+                return Fibonacci.nextBlock(length, toBigInteger(a), toBigInteger(b));
+            }
+
+            @Override
+            public List<? extends Number> sequence(int length, Number a, Number b) {
+                return Fibonacci.sequence(length, toBigInteger(a), toBigInteger(b));
+            }
+        },
+        /**
+         * Terms are {@link DecimalNat} values, which are printed by copying their digits.
+         */
+        DECIMAL {
+            @Override
+            public List<? extends Number> nextBlock(int length, Number a, Number b) {
+                return Fibonacci.nextBlock(length, DecimalNat.valueOf(a), DecimalNat.valueOf(b));
+            }
+
+            @Override
+            public List<? extends Number> sequence(int length, Number a, Number b) {
+                return Fibonacci.sequence(length, DecimalNat.valueOf(a), DecimalNat.valueOf(b));
+            }
+        };
+
+        /**
+         * @see Fibonacci#nextBlock(int, BigInteger, BigInteger)
+         */
+        public abstract List<? extends Number> nextBlock(int length, Number a, Number b);
+
+        /**
+         * @see Fibonacci#sequence(int, BigInteger, BigInteger)
+         */
+        public abstract List<? extends Number> sequence(int length, Number a, Number b);
+    }
+
     /**
      * Default term 0 is 0.
      */
@@ -45,6 +101,44 @@ public final class Fibonacci {
      */
     public static final BigInteger DEFAULT_1 = BigInteger.ONE;
 
+    /**
+     * Approximate number of bits each term adds to the sequence, log2 of the golden ratio.
+     */
+    public static final double BITS_PER_TERM = 0.6942419136306174;
+
+    /**
+     * The golden ratio, the limit of the ratio between consecutive terms.
+     */
+    private static final double PHI = (1 + Math.sqrt(5)) / 2;
+
+    /**
+     * Largest index of a standard Fibonacci term that fits in a <code>long</code>.
+     */
+    public static final int MAX_LONG_TERM = 92;
+
+    /**
+     * Standard Fibonacci terms F(0) through F({@link #MAX_LONG_TERM}).
+     */
+    private static final long[] LONG_TERMS = new long[MAX_LONG_TERM + 1];
+
+    static {
+        LONG_TERMS[1] = 1;
+        for (int i = 2; i <= MAX_LONG_TERM; ++i) {
+            LONG_TERMS[i] = LONG_TERMS[i-1] + LONG_TERMS[i-2];
+        }
+    }
+
+    /**
+     * Largest bit length a {@link BigInteger} can hold.
+     */
+    private static final long MAX_BITS = Integer.MAX_VALUE;
+
+    /**
+     * Number of term-sized values alive at once while fast doubling, including the temporaries
+     * created by a single multiplication.
+     */
+    private static final int DOUBLING_COPIES = 6;
+
     /**
      * Calculates a specific term of the Fibonacci sequence with generalized starting terms.
      * If term, <code>a</code>, or <code>b</code> are negative, or <code>b</code> is less than
@@ -54,8 +148,26 @@ public final class Fibonacci {
      * @param   a       First term of the sequence
      * @param   b       Second term of the sequence
      * @return          Value of the specified term
+     * @see             #at(long, BigInteger, BigInteger)
      */
     public static BigInteger at(final int term, BigInteger a, BigInteger b) {
+        return at((long)term, a, b);
+    }
+
+    /**
+     * Calculates a specific term of the Fibonacci sequence with generalized starting terms and a
+     * term index that may be beyond {@link Integer#MAX_VALUE}. If term, <code>a</code>, or
+     * <code>b</code> are negative, or <code>b</code> is less than <code>a</code>, an
+     * {@link IllegalArgumentException} is thrown. The size of the result is estimated before any
+     * work starts, and an {@link IllegalArgumentException} is also thrown if the term could not
+     * be represented or would not fit in the available heap.
+     *
+     * @param   term    Specified term in sequence starting at 0
+     * @param   a       First term of the sequence
+     * @param   b       Second term of the sequence
+     * @return          Value of the specified term
+     */
+    public static BigInteger at(final long term, BigInteger a, BigInteger b) {
         if (term < 0) {
             throw new IllegalArgumentException("Term must be non-negative: " + term);
         }  else if (a.compareTo(BigInteger.ZERO) == -1 || b.compareTo(a) == -1) {
@@ -73,14 +185,25 @@ public final class Fibonacci {
             return BigInteger.ZERO;
         }
 
-        BigInteger val = BigInteger.ZERO;
-        for (int i = 2; i <= term; ++i) {
-            val = a.add(b);
-            a = b;
-            b = val;
+        if (term <= MAX_LONG_TERM && a.bitLength() < Long.SIZE && b.bitLength() < Long.SIZE) {
+            try {
+                int n = (int)term;
+                long val = Math.addExact(Math.multiplyExact(LONG_TERMS[n-1], a.longValue()),
+                                         Math.multiplyExact(LONG_TERMS[n], b.longValue()));
+                return BigInteger.valueOf(val);
+            } catch (ArithmeticException e) {
+                // Term does not fit in a long, so fall through to BigInteger
+            }
         }
 
-        return val;
+        checkMemory(term, estimateBits(term, a, b), DOUBLING_COPIES);
+
+        // G(n) = F(n-1)*a + F(n)*b for any starting terms G(0) = a and G(1) = b
+        BigInteger[] pair = pair(term - 1);
+        if (a.signum() == 0) {
+            return b.equals(BigInteger.ONE) ? pair[1] : pair[1].multiply(b);
+        }
+        return pair[0].multiply(a).add(pair[1].multiply(b));
     }
 
     /**
@@ -92,9 +215,36 @@ public final class Fibonacci {
      * @see     #at(int, int, int)
      */
     public static BigInteger at(final int term) {
+        return at((long)term, BigInteger.ZERO, BigInteger.ONE);
+    }
+
+    /**
+     * Calculates a specific term of the Fibonacci sequence starting with 0 and 1. If
+     * <code>term</code> is negative, or the term would not fit in the available heap, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   term
+     * @return  Value of the specified term
+     * @see     #at(long, BigInteger, BigInteger)
+     */
+    public static BigInteger at(final long term) {
         return at(term, BigInteger.ZERO, BigInteger.ONE);
     }
 
+    /**
+     * Estimates the number of bits in a specific term of a generalized sequence. Each term adds
+     * about {@link #BITS_PER_TERM} bits, so the estimate is close for large terms and never much
+     * smaller than the actual bit length.
+     *
+     * @param   term    Specified term in sequence starting at 0
+     * @param   a       First term of the sequence
+     * @param   b       Second term of the sequence
+     * @return          Estimated bit length of the term
+     */
+    public static long estimateBits(final long term, BigInteger a, BigInteger b) {
+        return (long)Math.ceil(BITS_PER_TERM * term) + Math.max(a.bitLength(), b.bitLength()) + 1;
+    }
+
 
     /**
      * Generates the next block of a sequence following two given values up to a maximum. The first
@@ -105,15 +255,16 @@ public final class Fibonacci {
      * the sequence. There is no validation beyond this, so it is possible to generate a block that
      * could not legally follow a block that ended with <code>a</code> and <code>b</code>. Blocks
      * can be called successively by reading the return array at index <code>length-2</code> for the
-     * next <code>a</code> and <code>length-1</code> for the next <code>b</code>.
+     * next <code>a</code> and <code>length-1</code> for the next <code>b</code>. Terms are only
+     * calculated when they are read, as described in {@link LazyBlock}.
      *
      * @param   length  Length of the sequence block
      * @param   a       Two terms before block begins
      * @param   b       One term before block begins
-     * @return          ArrayList of values in the sequence block
+     * @return          Lazy list of values in the sequence block
      * @see             #sequence(int, int, int)
      */
-    public static ArrayList<BigInteger> nextBlock(final int length, BigInteger a, BigInteger b)
+    public static List<BigInteger> nextBlock(final int length, BigInteger a, BigInteger b)
     {
         if (length <= 0) {
             throw new IllegalArgumentException("Length must be positive: " + length);
@@ -122,16 +273,7 @@ public final class Fibonacci {
                     + "term2 must be later in the sequence: term1=" + a + " term2=" + b);
         }
 
-        ArrayList<BigInteger> block = new ArrayList<>(length);
-        BigInteger next = a.add(b);
-        for (int i = 0; i < length; ++i) {
-            next = a.add(b);
-            a = b;
-            b = next;
-            block.add(next);
-        }
-
-        return block;
+        return new LazyBlock(a, b, 2, length);
     }
 
 
@@ -139,14 +281,15 @@ public final class Fibonacci {
      * Generates a sequence starting with two given values. The first term of sequence is
      * <code>a</code> and the second term is <code>b</code>. Each following term is the sum of
      * the two before it. The two values <code>a</code> and <code>b</code> must be non-negative.
+     * Terms are only calculated when they are read, as described in {@link LazyBlock}.
      *
      * @param   length  Length of the sequence block
      * @param   a       First term of sequence
      * @param   b       Second term of sequence
-     * @return          Array of values in the sequence block
+     * @return          Lazy list of values in the sequence block
      * @see             #nextBlock(int, int, int)
      */
-    public static ArrayList<BigInteger> sequence(final int length, BigInteger a, BigInteger b) {
+    public static List<BigInteger> sequence(final int length, BigInteger a, BigInteger b) {
         if (length <= 0) {
             throw new IllegalArgumentException("Length must be positive: " + length);
         } else if (a.compareTo(BigInteger.ZERO) == -1 || b.compareTo(a) == -1) {
@@ -155,24 +298,400 @@ public final class Fibonacci {
         }
 
 
-        ArrayList<BigInteger> block = new ArrayList<>(length);
-        block.add(a);
+        return new LazyBlock(a, b, 0, length);
+    }
+
+
+    /**
+     * Generates the next block of a sequence following two given decimal values. The block is
+     * the same as {@link #nextBlock(int, BigInteger, BigInteger)}, but every term is kept in
+     * decimal so it can be printed without a radix conversion.
+     *
+     * @param   length  Length of the sequence block
+     * @param   a       Two terms before block begins
+     * @param   b       One term before block begins
+     * @return          ArrayList of values in the sequence block
+     */
+    public static ArrayList<DecimalNat> nextBlock(final int length, DecimalNat a, DecimalNat b) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        } else if (b.compareTo(a) == -1) {
+            throw new IllegalArgumentException("term2 must be later in the sequence: term1="
+                    + a + " term2=" + b);
+        }
+
+        ArrayList<DecimalNat> block = new ArrayList<>(length);
+        extend(block, length, a, b);
+        return block;
+    }
+
+    /**
+     * Generates a sequence starting with two given decimal values. The sequence is the same as
+     * {@link #sequence(int, BigInteger, BigInteger)}, but every term is kept in decimal so it can
+     * be printed without a radix conversion.
+     *
+     * @param   length  Length of the sequence block
+     * @param   a       First term of sequence
+     * @param   b       Second term of sequence
+     * @return          ArrayList of values in the sequence block
+     */
+    public static ArrayList<DecimalNat> sequence(final int length, DecimalNat a, DecimalNat b) {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        } else if (b.compareTo(a) == -1) {
+            throw new IllegalArgumentException("B must be later in the sequence: a=" + a
+                    + " b=" + b);
+        }
 
+        ArrayList<DecimalNat> block = new ArrayList<>(length);
+        block.add(a);
         if (length >= 2) {
             block.add(b);
         }
+        if (length > 2) {
+            extend(block, length - 2, a, b);
+        }
+        return block;
+    }
 
+    private static void extend(ArrayList<DecimalNat> block, int count, DecimalNat a,
+                               DecimalNat b)
+    {
+        DecimalNat next;
+        for (; count > 0; --count) {
+            next = a.add(b);
+            a = b;
+            b = next;
+            block.add(next);
+        }
+    }
+
+    /**
+     * Converts a term in either representation to a {@link BigInteger}, returning it unchanged
+     * if it already is one.
+     *
+     * @param   term    {@link BigInteger} or {@link DecimalNat}
+     * @return          Value as a {@link BigInteger}
+     */
+    public static BigInteger toBigInteger(Number term) {
+        if (term instanceof DecimalNat) {
+            return ((DecimalNat)term).toBigInteger();
+        }
+        return (BigInteger)term;
+    }
+
+
+    /**
+     * Finds the index of the last term of a generalized sequence that is not greater than a max
+     * value. The index is estimated from the inverse of Binet's formula,
+     * <code>G(k) ~ phi^k * (a/phi + b) / sqrt(5)</code>, and then corrected by calculating the
+     * terms around it with fast doubling, so only a few terms are ever calculated. If
+     * <code>a</code> is negative or <code>b</code> is less than <code>a</code>, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   a       First term of the sequence
+     * @param   b       Second term of the sequence
+     * @param   max     Max value
+     * @return          Index of the last term not greater than <code>max</code>, -1 if even
+     *                  <code>a</code> is greater, or {@link Long#MAX_VALUE} if every term is 0
+     */
+    public static long lastIndexWithin(BigInteger a, BigInteger b, BigInteger max) {
+        if (a.signum() < 0 || b.compareTo(a) < 0) {
+            throw new IllegalArgumentException("Terms must be positive, and second term must be "
+                    + "later in the sequence: term1=" + a + " term2=" + b);
+        }
+
+        if (a.compareTo(max) > 0) {
+            return -1;
+        } else if (b.compareTo(max) > 0) {
+            return 0;
+        } else if (b.signum() == 0) {
+            return Long.MAX_VALUE;
+        }
+
+        double ratio = a.signum() == 0 ? 0 : Math.exp(log(a) - log(b));
+        double estimate = (log(max) + Math.log(Math.sqrt(5)) - log(b) - Math.log1p(ratio / PHI))
+                          / Math.log(PHI);
+        long k = Math.max(1, (long)estimate);
+
+        // Step back while G(k) is too large, then forward while G(k+1) still fits
+        BigInteger[] terms = termsAt(k, a, b);
+        while (k > 1 && terms[0].compareTo(max) > 0) {
+            terms = termsAt(--k, a, b);
+        }
+        while (terms[1].compareTo(max) <= 0) {
+            terms = new BigInteger[] {terms[1], terms[0].add(terms[1])};
+            ++k;
+        }
+        return k;
+    }
+
+    /**
+     * Generates a block of a generalized sequence starting at a term index that may be beyond
+     * {@link Integer#MAX_VALUE}. The first term of the block is term <code>first</code> of the
+     * sequence starting with <code>a</code> and <code>b</code>, found with
+     * {@link #at(long, BigInteger, BigInteger)}, and each following term is the sum of the two
+     * before it. The memory needed for the whole block is estimated before any work starts, and
+     * an {@link IllegalArgumentException} is thrown if it would not fit in the available heap.
+     * Terms are only calculated when they are read, as described in {@link LazyBlock}.
+     *
+     * @param   first   Index of the first term of the block
+     * @param   length  Length of the sequence block
+     * @param   a       First term of sequence
+     * @param   b       Second term of sequence
+     * @return          Lazy list of values in the sequence block
+     * @see             #sequence(int, BigInteger, BigInteger)
+     */
+    public static List<BigInteger> block(final long first, final int length,
+                                         BigInteger a, BigInteger b)
+    {
+        if (first < 0) {
+            throw new IllegalArgumentException("First term must be non-negative: " + first);
+        } else if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        } else if (first > Long.MAX_VALUE - length) {
+            throw new IllegalArgumentException("Block ends beyond the last term index: first="
+                    + first + " length=" + length);
+        } else if (a.compareTo(BigInteger.ZERO) == -1 || b.compareTo(a) == -1) {
+            throw new IllegalArgumentException("Terms must be positive, and second term must be "
+                    + "later in the sequence: term1=" + a + " term2=" + b);
+        }
+
+        long last = first + length - 1;
+        checkMemory(last, estimateBits(last, a, b), length + DOUBLING_COPIES);
+
+        return new LazyBlock(a, b, first, length);
+    }
+
+    /**
+     * Checks that a number of term-sized values can be represented and will fit in the heap
+     * before the work to calculate them starts. An {@link IllegalArgumentException} is thrown
+     * otherwise, so large requests fail fast instead of running out of memory part of the way.
+     *
+     * @param   term    Index of the largest term, for the error message
+     * @param   bits    Estimated bit length of the largest term
+     * @param   copies  Number of values of that size alive at once
+     */
+    private static void checkMemory(final long term, final long bits, final long copies) {
+        if (bits > MAX_BITS) {
+            throw new IllegalArgumentException("Term " + term + " has about " + bits
+                    + " bits, which is more than a BigInteger can hold");
+        }
+
+        Runtime rt = Runtime.getRuntime();
+        long available = rt.maxMemory() - (rt.totalMemory() - rt.freeMemory());
+        double needed = (double)(bits / 8 + 1) * copies;
+        if (needed > available) {
+            throw new IllegalArgumentException("Term " + term + " needs about "
+                    + (long)(needed / (1 << 20)) + " MB, but only " + (available >> 20)
+                    + " MB of heap is available");
+        }
+    }
+
+
+    /**
+     * Calculates a specific term of the Fibonacci sequence with generalized starting terms modulo
+     * a given value, without calculating the full term. The index is first reduced by the Pisano
+     * period of the modulus from {@link PisanoPeriods}, and the term is then found by fast
+     * doubling with <code>long</code> arithmetic. If term, <code>a</code>, or <code>b</code> are
+     * negative, <code>b</code> is less than <code>a</code>, or the modulus is not positive, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   term    Specified term in sequence starting at 0
+     * @param   a       First term of the sequence
+     * @param   b       Second term of the sequence
+     * @param   modulus Positive modulus
+     * @return          Value of the specified term modulo <code>modulus</code>
+     */
+    public static long at(BigInteger term, BigInteger a, BigInteger b, final long modulus) {
+        if (term.signum() < 0) {
+            throw new IllegalArgumentException("Term must be non-negative: " + term);
+        }
+        checkModular(a, b, modulus);
+
+        try {
+            term = BigInteger.valueOf(Modulus.reduce(term, PisanoPeriods.period(modulus)));
+        } catch (ArithmeticException e) {
+            // Period does not fit in a long, so the index is used as given
+        }
+
+        long ra = Modulus.reduce(a, modulus);
+        long rb = Modulus.reduce(b, modulus);
+        if (term.signum() == 0) {
+            return ra;
+        } else if (term.equals(BigInteger.ONE)) {
+            return rb;
+        }
+
+        // G(n) = F(n-1)*a + F(n)*b for any starting terms G(0) = a and G(1) = b
+        Modulus mod = Modulus.of(modulus);
+        long[] pair = pair(term.subtract(BigInteger.ONE), mod);
+        return mod.value(mod.add(mod.multiply(pair[0], mod.residue(ra)),
+                                 mod.multiply(pair[1], mod.residue(rb))));
+    }
+
+    /**
+     * Calculates a specific term of the Fibonacci sequence starting with 0 and 1 modulo a given
+     * value. If <code>term</code> is negative or the modulus is not positive, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   term    Specified term in sequence starting at 0
+     * @param   modulus Positive modulus
+     * @return          Value of the specified term modulo <code>modulus</code>
+     * @see             #at(BigInteger, BigInteger, BigInteger, long)
+     */
+    public static long at(BigInteger term, final long modulus) {
+        return at(term, BigInteger.ZERO, BigInteger.ONE, modulus);
+    }
+
+    /**
+     * Generates the next block of a sequence following two given values modulo a given value.
+     * The block is the same as {@link #nextBlock(int, BigInteger, BigInteger)} with each term
+     * reduced, but only needs <code>long</code> additions.
+     *
+     * @param   length  Length of the sequence block
+     * @param   a       Two terms before block begins
+     * @param   b       One term before block begins
+     * @param   modulus Positive modulus
+     * @return          Array of values in the sequence block modulo <code>modulus</code>
+     */
+    public static long[] nextBlock(final int length, BigInteger a, BigInteger b,
+                                   final long modulus)
+    {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        }
+        checkModular(a, b, modulus);
+
+        long[] block = new long[length];
+        extend(block, 0, Modulus.reduce(a, modulus), Modulus.reduce(b, modulus), modulus);
+        return block;
+    }
+
+    /**
+     * Generates a sequence starting with two given values modulo a given value. The sequence is
+     * the same as {@link #sequence(int, BigInteger, BigInteger)} with each term reduced, but
+     * only needs <code>long</code> additions.
+     *
+     * @param   length  Length of the sequence block
+     * @param   a       First term of sequence
+     * @param   b       Second term of sequence
+     * @param   modulus Positive modulus
+     * @return          Array of values in the sequence block modulo <code>modulus</code>
+     */
+    public static long[] sequence(final int length, BigInteger a, BigInteger b,
+                                  final long modulus)
+    {
+        if (length <= 0) {
+            throw new IllegalArgumentException("Length must be positive: " + length);
+        }
+        checkModular(a, b, modulus);
+
+        long[] block = new long[length];
+        block[0] = Modulus.reduce(a, modulus);
+        if (length >= 2) {
+            block[1] = Modulus.reduce(b, modulus);
+        }
         if (length > 2) {
-            BigInteger next;
-            for (int i = 2; i < length; ++i) {
-                next = a.add(b);
-                a = b;
-                b = next;
-                block.add(next);
+            extend(block, 2, block[0], block[1], modulus);
+        }
+        return block;
+    }
+
+    /**
+     * Fills a modular block from a given index with terms following two given remainders.
+     */
+    private static void extend(long[] block, int from, long x, long y, final long modulus) {
+        for (int i = from; i < block.length; ++i) {
+            long z = Modulus.add(x, y, modulus);
+            x = y;
+            y = z;
+            block[i] = z;
+        }
+    }
+
+    private static void checkModular(BigInteger a, BigInteger b, final long modulus) {
+        if (modulus <= 0) {
+            throw new IllegalArgumentException("Modulus must be positive: " + modulus);
+        } else if (a.compareTo(BigInteger.ZERO) == -1 || b.compareTo(a) == -1) {
+            throw new IllegalArgumentException("Terms must be positive, and second term must be "
+                    + "later in the sequence: term1=" + a + " term2=" + b);
+        }
+    }
+
+    /**
+     * Calculates the pair of standard Fibonacci terms F(n) and F(n+1) modulo a given value by
+     * fast doubling.
+     *
+     * @param   n   Non-negative index of the first term of the pair
+     * @param   mod Residue arithmetic of the modulus
+     * @return      Array holding the residues of F(n) at index 0 and F(n+1) at index 1
+     */
+    static long[] pair(BigInteger n, final Modulus mod) {
+        long fk  = 0;           // F(k)
+        long fk1 = mod.one();   // F(k+1)
+
+        for (int bit = n.bitLength() - 1; bit >= 0; --bit) {
+            long f2k  = mod.multiply(fk, mod.subtract(mod.add(fk1, fk1), fk));
+            long f2k1 = mod.add(mod.multiply(fk, fk), mod.multiply(fk1, fk1));
+
+            if (n.testBit(bit)) {
+                fk  = f2k1;
+                fk1 = mod.add(f2k, f2k1);
+            } else {
+                fk  = f2k;
+                fk1 = f2k1;
             }
         }
 
-        return block;
+        return new long[] {fk, fk1};
+    }
+
+
+    /**
+     * Calculates the terms G(k) and G(k+1) of a generalized sequence for <code>k &gt;= 1</code>.
+     */
+    static BigInteger[] termsAt(final long k, BigInteger a, BigInteger b) {
+        BigInteger[] f = pair(k - 1);
+        BigInteger fk1 = f[0].add(f[1]);
+        return new BigInteger[] {f[0].multiply(a).add(f[1].multiply(b)),
+                                 f[1].multiply(a).add(fk1.multiply(b))};
+    }
+
+    /**
+     * Natural logarithm of a positive integer of any size.
+     */
+    private static double log(BigInteger x) {
+        int shift = Math.max(0, x.bitLength() - Long.SIZE);
+        return Math.log(x.shiftRight(shift).doubleValue()) + shift * Math.log(2);
+    }
+
+    /**
+     * Calculates the pair of standard Fibonacci terms F(n) and F(n+1) by fast doubling, using
+     * F(2k) = F(k)(2F(k+1) - F(k)) and F(2k+1) = F(k)^2 + F(k+1)^2. Only O(log n) big integer
+     * multiplications are needed instead of n additions.
+     *
+     * @param   n   Non-negative index of the first term of the pair
+     * @return      Array holding F(n) at index 0 and F(n+1) at index 1
+     */
+    private static BigInteger[] pair(final long n) {
+        BigInteger fk  = BigInteger.ZERO;   // F(k)
+        BigInteger fk1 = BigInteger.ONE;    // F(k+1)
+
+        for (long bit = Long.highestOneBit(n); bit != 0; bit >>>= 1) {
+            BigInteger f2k  = fk.multiply(fk1.shiftLeft(1).subtract(fk));
+            BigInteger f2k1 = fk.multiply(fk).add(fk1.multiply(fk1));
+
+            if ((n & bit) == 0) {
+                fk  = f2k;
+                fk1 = f2k1;
+            } else {
+                fk  = f2k1;
+                fk1 = f2k.add(f2k1);
+            }
+        }
+
+        return new BigInteger[] {fk, fk1};
     }
 
 
@@ -0,0 +1,172 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * A block of a generalized sequence whose terms are only calculated when they are read. A term
+ * whose two previous terms are already known is found with one addition, so reading the block in
+ * order costs the same as building it up front. A term far from any known term is found directly
+ * with fast doubling, together with the term after it, so reading continues in order from there.
+ * Only the terms that have been read are kept, so a caller that reads a prefix of the block, or
+ * its last two terms, never pays for the rest.
+ *
+ * The block is unmodifiable. It may be read from several threads at once, in which case a term
+ * may be calculated more than once, but always to the same immutable value.
+ */
+final class LazyBlock extends AbstractList<BigInteger> implements RandomAccess {
+
+    /**
+     * Furthest a term may be from a known pair of terms to be found by stepping to it rather
+     * than by fast doubling.
+     */
+    static final int STEP_LIMIT = 64;
+
+    /**
+     * First two terms of the sequence, G(0) and G(1).
+     */
+    private final BigInteger a;
+    private final BigInteger b;
+
+    /**
+     * Index in the sequence of the first term of the block.
+     */
+    private final long first;
+
+    /**
+     * Terms read so far, or null where a term has not been calculated.
+     */
+    private final BigInteger[] terms;
+
+
+
+    /**
+     * Creates a block without calculating any of its terms. The arguments are not validated, so
+     * they must already have been checked by the caller.
+     *
+     * @param   a       First term of the sequence
+     * @param   b       Second term of the sequence
+     * @param   first   Index in the sequence of the first term of the block
+     * @param   length  Number of terms in the block
+     */
+    LazyBlock(BigInteger a, BigInteger b, long first, int length) {
+        this.a     = a;
+        this.b     = b;
+        this.first = first;
+        this.terms = new BigInteger[length];
+    }
+
+
+
+    @Override
+    public int size() {
+        return terms.length;
+    }
+
+    @Override
+    public BigInteger get(int index) {
+        if (index < 0 || index >= terms.length) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for length "
+                                                + terms.length);
+        }
+
+        long k = first + index;
+        BigInteger term = known(k);
+        if (term != null) {
+            return term;
+        }
+
+        // Step from the nearest known pair of terms if it is close enough
+        for (long j = k - 1; j >= 1 && j >= k - STEP_LIMIT; --j) {
+            BigInteger y = known(j);
+            BigInteger x = y == null ? null : known(j - 1);
+            if (x != null) {
+                return step(j, k, x, y);
+            }
+        }
+
+        BigInteger[] pair = Fibonacci.termsAt(k, a, b);
+        store(k, pair[0]);
+        store(k + 1, pair[1]);
+        return pair[0];
+    }
+
+
+
+    /**
+     * Steps from a known pair of terms to a later term, storing each term on the way. Terms are
+     * added with primitive <code>long</code> arithmetic while they fit, and are only promoted to
+     * {@link BigInteger} arithmetic once a sum overflows.
+     *
+     * @param   j   Index of the second term of the known pair
+     * @param   k   Index of the term to step to
+     * @param   x   Term at <code>j-1</code>
+     * @param   y   Term at <code>j</code>
+     * @return      Term at <code>k</code>
+     */
+    private BigInteger step(long j, long k, BigInteger x, BigInteger y) {
+        if (x.bitLength() < Long.SIZE && y.bitLength() < Long.SIZE) {
+            long p = x.longValue();
+            long q = y.longValue();
+            try {
+                while (j < k) {
+                    long r = Math.addExact(p, q);
+                    p = q;
+                    q = r;
+                    y = BigInteger.valueOf(r);
+                    store(++j, y);
+                }
+                return y;
+            } catch (ArithmeticException e) {
+                x = BigInteger.valueOf(p);
+            }
+        }
+
+        while (j < k) {
+            BigInteger z = x.add(y);
+            x = y;
+            y = z;
+            store(++j, z);
+        }
+        return y;
+    }
+
+    /**
+     * @return  Term at an index in the sequence, or null if it has not been calculated
+     */
+    private BigInteger known(long k) {
+        if (k == 0) {
+            return a;
+        } else if (k == 1) {
+            return b;
+        } else if (k < first || k - first >= terms.length) {
+            return null;
+        }
+        return terms[(int)(k - first)];
+    }
+
+    private void store(long k, BigInteger term) {
+        if (k >= first && k - first < terms.length) {
+            terms[(int)(k - first)] = term;
+        }
+    }
+}
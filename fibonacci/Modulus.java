@@ -0,0 +1,333 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+
+/**
+ * Arithmetic on residues of a positive 63-bit modulus using only <code>long</code> values.
+ * Residues are kept in an internal representation that depends on the modulus: small moduli
+ * use plain remainders, odd moduli use Montgomery form, powers of two use bit masks, and other
+ * even moduli combine a power of two and an odd part with the Chinese remainder theorem.
+ * Values must be converted with {@link #residue(long)} before any arithmetic, and converted
+ * back with {@link #value(long)}.
+ */
+abstract class Modulus {
+
+    /**
+     * Largest modulus whose products of residues fit in a <code>long</code>.
+     */
+    private static final long SMALL_LIMIT = 1L << 31;
+
+    /**
+     * Value of the modulus.
+     */
+    final long value;
+
+
+    private Modulus(final long value) {
+        this.value = value;
+    }
+
+    /**
+     * Creates the fastest residue arithmetic for a given modulus. If the modulus is not
+     * positive, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   m   Modulus
+     * @return      Residue arithmetic for the modulus
+     */
+    static Modulus of(final long m) {
+        if (m <= 0) {
+            throw new IllegalArgumentException("Modulus must be positive: " + m);
+        }
+
+        if (m <= SMALL_LIMIT) {
+            return new Small(m);
+        }
+
+        int twos = Long.numberOfTrailingZeros(m);
+        if (twos == 0) {
+            return new Montgomery(m);
+        } else if ((m & (m - 1)) == 0) {
+            return new PowerOfTwo(m);
+        }
+        return new Split(m, twos);
+    }
+
+    /**
+     * Reduces a non-negative integer to a plain remainder.
+     *
+     * @param   x   Non-negative integer
+     * @param   m   Modulus
+     * @return      Remainder of <code>x</code> divided by <code>m</code>
+     */
+    static long reduce(final BigInteger x, final long m) {
+        if (x.bitLength() < Long.SIZE) {
+            return x.longValue() % m;
+        }
+        return x.mod(BigInteger.valueOf(m)).longValue();
+    }
+
+    /**
+     * Adds two plain remainders without overflowing, even when their sum is beyond
+     * {@link Long#MAX_VALUE}.
+     *
+     * @param   x   Remainder less than <code>m</code>
+     * @param   y   Remainder less than <code>m</code>
+     * @param   m   Modulus
+     * @return      Remainder of <code>x + y</code>
+     */
+    static long add(final long x, final long y, final long m) {
+        long sum = x + y;
+        return (sum < 0 || sum >= m) ? sum - m : sum;
+    }
+
+    /**
+     * Converts a plain remainder to the internal representation.
+     *
+     * @param   x   Remainder less than the modulus
+     * @return      Residue of <code>x</code>
+     */
+    abstract long residue(long x);
+
+    /**
+     * Converts a residue in the internal representation back to a plain remainder.
+     *
+     * @param   r   Residue
+     * @return      Plain remainder
+     */
+    abstract long value(long r);
+
+    /**
+     * Multiplies two residues.
+     *
+     * @param   x   Residue
+     * @param   y   Residue
+     * @return      Residue of the product
+     */
+    abstract long multiply(long x, long y);
+
+    /**
+     * @return  Residue of one
+     */
+    long one() {
+        return residue(1 % value);
+    }
+
+    /**
+     * Adds two residues. Every representation keeps residues below the modulus, so addition is
+     * the same as for plain remainders.
+     *
+     * @param   x   Residue
+     * @param   y   Residue
+     * @return      Residue of the sum
+     */
+    final long add(final long x, final long y) {
+        return add(x, y, value);
+    }
+
+    /**
+     * Raises a residue to a non-negative power by repeated squaring.
+     *
+     * @param   x   Residue
+     * @param   e   Non-negative exponent
+     * @return      Residue of <code>x^e</code>
+     */
+    final long pow(long x, long e) {
+        long result = one();
+        while (e != 0) {
+            if ((e & 1) != 0) {
+                result = multiply(result, x);
+            }
+            x = multiply(x, x);
+            e >>>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Subtracts two residues.
+     *
+     * @param   x   Residue
+     * @param   y   Residue
+     * @return      Residue of the difference
+     */
+    final long subtract(final long x, final long y) {
+        long diff = x - y;
+        return diff < 0 ? diff + value : diff;
+    }
+
+
+
+    /**
+     * Calculates the inverse of an odd number modulo 2^64 by Newton's iteration. Each step
+     * doubles the number of correct low bits, starting from 3 bits since q*q = 1 mod 8.
+     */
+    private static long inverse(final long q) {
+        long inv = q;
+        for (int i = 0; i < 5; ++i) {
+            inv *= 2 - q * inv;
+        }
+        return inv;
+    }
+
+    /**
+     * Montgomery reduction of the 128-bit value <code>hi:lo</code>, which must be less than
+     * <code>q * 2^64</code>. Returns <code>hi:lo * 2^-64 mod q</code>.
+     */
+    private static long redc(final long hi, final long lo, final long q, final long negInv) {
+        long u = lo * negInv;
+        // Unsigned high word of u * q, where q is positive
+        long uHi = Math.multiplyHigh(u, q) + ((u >> 63) & q);
+        // The low words sum to 0 mod 2^64, so they only carry if lo is not 0
+        long t = hi + uHi + (lo != 0 ? 1 : 0);
+        return Long.compareUnsigned(t, q) >= 0 ? t - q : t;
+    }
+
+
+    /**
+     * Moduli up to 2^31, where products fit in a <code>long</code> and a plain remainder is
+     * fastest.
+     */
+    private static final class Small extends Modulus {
+        Small(final long m) {
+            super(m);
+        }
+
+        @Override
+        long residue(final long x) {
+            return x;
+        }
+
+        @Override
+        long value(final long r) {
+            return r;
+        }
+
+        @Override
+        long multiply(final long x, final long y) {
+            return x * y % value;
+        }
+    }
+
+
+    /**
+     * Odd moduli, with residues kept in Montgomery form <code>x * 2^64 mod q</code> so each
+     * product needs two multiplications and no division.
+     */
+    private static final class Montgomery extends Modulus {
+        private final long negInv;
+        private final long r2;
+
+        Montgomery(final long q) {
+            super(q);
+            negInv = -inverse(q);
+            r2     = BigInteger.ONE.shiftLeft(128).mod(BigInteger.valueOf(q)).longValue();
+        }
+
+        @Override
+        long residue(final long x) {
+            return multiply(x, r2);
+        }
+
+        @Override
+        long value(final long r) {
+            return redc(0, r, value, negInv);
+        }
+
+        @Override
+        long multiply(final long x, final long y) {
+            return redc(Math.multiplyHigh(x, y), x * y, value, negInv);
+        }
+
+        /**
+         * Multiplies two plain remainders, giving a plain remainder.
+         */
+        long multiplyPlain(final long x, final long y) {
+            return multiply(multiply(x, y), r2);
+        }
+    }
+
+
+    /**
+     * Moduli that are powers of two, where products wrap around naturally and only need a mask.
+     */
+    private static final class PowerOfTwo extends Modulus {
+        private final long mask;
+
+        PowerOfTwo(final long m) {
+            super(m);
+            mask = m - 1;
+        }
+
+        @Override
+        long residue(final long x) {
+            return x;
+        }
+
+        @Override
+        long value(final long r) {
+            return r;
+        }
+
+        @Override
+        long multiply(final long x, final long y) {
+            return (x * y) & mask;
+        }
+    }
+
+
+    /**
+     * Even moduli <code>q * 2^k</code> with an odd part <code>q > 1</code>. Products are found
+     * modulo <code>2^k</code> and modulo <code>q</code> separately, then combined with the
+     * Chinese remainder theorem.
+     */
+    private static final class Split extends Modulus {
+        private final long       mask;
+        private final long       odd;
+        private final long       oddInv;
+        private final Montgomery oddPart;
+
+        Split(final long m, final int twos) {
+            super(m);
+            mask    = (1L << twos) - 1;
+            odd     = m >>> twos;
+            oddInv  = inverse(odd) & mask;
+            oddPart = new Montgomery(odd);
+        }
+
+        @Override
+        long residue(final long x) {
+            return x;
+        }
+
+        @Override
+        long value(final long r) {
+            return r;
+        }
+
+        @Override
+        long multiply(final long x, final long y) {
+            long low = (x * y) & mask;
+            long rem = oddPart.multiplyPlain(x % odd, y % odd);
+            long t   = ((low - rem) * oddInv) & mask;
+            return rem + odd * t;
+        }
+    }
+}
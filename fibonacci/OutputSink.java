@@ -0,0 +1,196 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+/**
+ * A buffered text output backed by a {@link WritableByteChannel}. Output is collected in a
+ * direct {@link ByteBuffer} and only written to the channel when the buffer fills or
+ * {@link #flush()} is called, so a whole block can be written with one system call. Text that is
+ * entirely ASCII is copied into the buffer byte by byte instead of going through a charset
+ * encoder. Unlike {@link System#out}, nothing is flushed automatically.
+ *
+ * As with {@link java.io.PrintStream}, write errors are not thrown, but can be checked with
+ * {@link #checkError()}. All methods are synchronized so threads may share a sink, and each call
+ * is written as a whole.
+ */
+public final class OutputSink {
+
+    /**
+     * Default size of the output buffer, 64 KB.
+     */
+    public static final int DEFAULT_BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Channel the output is written to.
+     */
+    private final WritableByteChannel channel;
+
+    /**
+     * Output not yet written to the channel.
+     */
+    private final ByteBuffer buffer;
+
+    /**
+     * Whether writing to the channel has failed.
+     */
+    private boolean error;
+
+
+
+    /**
+     * Creates a sink over a channel.
+     *
+     * @param   channel     Channel to write to
+     * @param   bufferSize  Size of the output buffer in bytes
+     */
+    public OutputSink(WritableByteChannel channel, final int bufferSize) {
+        this.channel = channel;
+        this.buffer  = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Creates a sink over the standard output of the process, bypassing {@link System#out}.
+     *
+     * @return  Sink over standard output
+     */
+    public static OutputSink stdout() {
+        return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel(),
+                              DEFAULT_BUFFER_SIZE);
+    }
+
+
+
+    /**
+     * Writes an array of bytes. Arrays larger than the buffer are written straight to the
+     * channel after the buffer is flushed.
+     *
+     * @param   bytes   Bytes to write
+     */
+    public synchronized void write(byte[] bytes) {
+        if (bytes.length > buffer.remaining()) {
+            flushBuffer();
+        }
+
+        if (bytes.length > buffer.capacity()) {
+            writeFully(ByteBuffer.wrap(bytes));
+        } else {
+            buffer.put(bytes);
+        }
+    }
+
+    /**
+     * Writes part of an array of bytes. The bytes are copied through the buffer in pieces,
+     * however many there are, so nothing is allocated.
+     *
+     * @param   bytes   Array holding the bytes to write
+     * @param   offset  Index of the first byte to write
+     * @param   length  Number of bytes to write
+     */
+    public synchronized void write(byte[] bytes, int offset, int length) {
+        while (length > 0) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            int n = Math.min(length, buffer.remaining());
+            buffer.put(bytes, offset, n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Writes text.
+     *
+     * @param   text    Text to write
+     */
+    public synchronized void print(CharSequence text) {
+        int length = text.length();
+        for (int i = 0; i < length; ++i) {
+            if (text.charAt(i) >= 0x80) {
+                write(text.toString().getBytes(Charset.defaultCharset()));
+                return;
+            }
+        }
+
+        // ASCII fast path: each character is one byte
+        for (int i = 0; i < length; ++i) {
+            if (!buffer.hasRemaining()) {
+                flushBuffer();
+            }
+            buffer.put((byte)text.charAt(i));
+        }
+    }
+
+    /**
+     * Writes text followed by a newline.
+     *
+     * @param   text    Text to write
+     */
+    public synchronized void println(CharSequence text) {
+        print(text);
+        println();
+    }
+
+    /**
+     * Writes a newline.
+     */
+    public synchronized void println() {
+        if (!buffer.hasRemaining()) {
+            flushBuffer();
+        }
+        buffer.put((byte)'\n');
+    }
+
+    /**
+     * Writes everything in the buffer to the channel.
+     */
+    public synchronized void flush() {
+        flushBuffer();
+    }
+
+    /**
+     * @return  Whether writing to the channel has ever failed
+     */
+    public synchronized boolean checkError() {
+        return error;
+    }
+
+    private void flushBuffer() {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(ByteBuffer bytes) {
+        try {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        } catch (IOException e) {
+            error = true;
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.LongFunction;
+
+/**
+ * A utility class that calculates the Pisano period and the rank of apparition of a modulus
+ * from its factorization. The Pisano period pi(m) is the length of the cycle the Fibonacci
+ * sequence repeats modulo m, and the rank of apparition alpha(m) is the index of the first
+ * positive term divisible by m. Both are found for each prime power of m and combined with the
+ * least common multiple:
+ *
+ *     pi(2) = 3, pi(5) = 20, and alpha(2) = 3, alpha(5) = 5.
+ *     For a prime p = 1 or 4 mod 5, pi(p) and alpha(p) divide p - 1.
+ *     For a prime p = 2 or 3 mod 5, pi(p) divides 2(p + 1) and alpha(p) divides p + 1.
+ *     pi(p^k) divides p^(k-1) pi(p), and alpha(p^k) divides p^(k-1) alpha(p).
+ *
+ * The exact values are found by dividing the bound by each of its prime factors for as long as
+ * the property still holds, checked with fast doubling. Moduli are factored by Pollard's rho
+ * method, so this only takes a few milliseconds even for moduli near 2^63. Results are kept in
+ * bounded caches that are safe to share between threads and evict the least recently used
+ * modulus when full.
+ */
+public final class PisanoPeriods {
+
+    /**
+     * Most moduli kept in each cache.
+     */
+    private static final int CACHE_SIZE = 1024;
+
+    /**
+     * Primes below this are removed by trial division before trying Pollard's rho method.
+     */
+    private static final int TRIAL_LIMIT = 1000;
+
+    /**
+     * Bases that make the Miller-Rabin test deterministic for every 64-bit number.
+     */
+    private static final long[] WITNESSES = {2, 325, 9375, 28178, 450775, 9780504, 1795265022};
+
+    /**
+     * Pisano periods calculated so far, by modulus. Guarded by its own lock.
+     */
+    private static final Map<Long, Long> periods = newCache();
+
+    /**
+     * Ranks of apparition calculated so far, by modulus. Guarded by its own lock.
+     */
+    private static final Map<Long, Long> ranks = newCache();
+
+
+
+    /**
+     * Calculates the Pisano period of a modulus, the length of the cycle the Fibonacci sequence
+     * repeats modulo <code>m</code>. Any generalized sequence repeats with the same period. If
+     * the modulus is not positive, an {@link IllegalArgumentException} is thrown, and if the
+     * period does not fit in a <code>long</code>, an {@link ArithmeticException} is thrown.
+     *
+     * @param   m   Positive modulus
+     * @return      Pisano period of <code>m</code>
+     */
+    public static long period(final long m) {
+        return cached(periods, m, n -> combine(n, true));
+    }
+
+    /**
+     * Calculates the rank of apparition of a modulus, the index of the first positive term of the
+     * standard Fibonacci sequence that is divisible by <code>m</code>. A term F(n) is divisible
+     * by <code>m</code> exactly when <code>n</code> is a multiple of the rank. If the modulus is
+     * not positive, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   m   Positive modulus
+     * @return      Rank of apparition of <code>m</code>
+     */
+    public static long rankOfApparition(final long m) {
+        return cached(ranks, m, n -> combine(n, false));
+    }
+
+    /**
+     * Looks up a modulus in a cache, calculating it outside the lock if it is missing, so
+     * threads only wait for each other while the cache itself is read or changed.
+     */
+    private static long cached(Map<Long, Long> cache, final long m,
+                               LongFunction<Long> calculate)
+    {
+        if (m <= 0) {
+            throw new IllegalArgumentException("Modulus must be positive: " + m);
+        }
+
+        Long value;
+        synchronized (cache) {
+            value = cache.get(m);
+        }
+        if (value == null) {
+            value = calculate.apply(m);
+            synchronized (cache) {
+                cache.put(m, value);
+            }
+        }
+        return value;
+    }
+
+    /**
+     * Creates a cache in access order that drops its least recently used modulus once it holds
+     * more than {@link #CACHE_SIZE}.
+     */
+    private static Map<Long, Long> newCache() {
+        return new LinkedHashMap<Long, Long>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Long> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        };
+    }
+
+
+
+    /**
+     * Combines the period or rank of each prime power of a modulus with the least common
+     * multiple.
+     */
+    private static long combine(final long m, final boolean period) {
+        BigInteger result = BigInteger.ONE;
+        for (Map.Entry<Long, Integer> factor : factor(m).entrySet()) {
+            BigInteger part = primePower(factor.getKey(), factor.getValue(), period);
+            result = result.divide(result.gcd(part)).multiply(part);
+        }
+        return result.longValueExact();
+    }
+
+    /**
+     * Calculates the period or rank of a prime power p^k.
+     */
+    private static BigInteger primePower(final long p, final int k, final boolean period) {
+        BigInteger bound;
+        TreeMap<Long, Integer> boundFactors;
+
+        if (p == 2) {
+            bound = BigInteger.valueOf(3);
+            boundFactors = null;
+        } else if (p == 5) {
+            bound = BigInteger.valueOf(period ? 20 : 5);
+            boundFactors = null;
+        } else if (p % 5 == 1 || p % 5 == 4) {
+            bound = BigInteger.valueOf(p - 1);
+            boundFactors = factor(p - 1);
+        } else {
+            bound = BigInteger.valueOf(p + 1);
+            boundFactors = factor(p + 1);
+            if (period) {
+                bound = bound.shiftLeft(1);
+                boundFactors.merge(2L, 1, Integer::sum);
+            }
+        }
+
+        // Only primes other than 2 and 5 need their bound refined modulo p
+        BigInteger order = bound;
+        if (boundFactors != null) {
+            order = reduceOrder(bound, boundFactors, Modulus.of(p), period);
+        }
+
+        if (k == 1) {
+            return order;
+        }
+
+        long pk = 1;
+        for (int i = 0; i < k; ++i) {
+            pk *= p;
+        }
+        BigInteger prime = BigInteger.valueOf(p);
+        order = order.multiply(prime.pow(k - 1));
+
+        TreeMap<Long, Integer> primeFactors = new TreeMap<>();
+        primeFactors.put(p, k - 1);
+        return reduceOrder(order, primeFactors, Modulus.of(pk), period);
+    }
+
+    /**
+     * Divides a known multiple of the period or rank by each of its prime factors for as long as
+     * the result is still a multiple, leaving the smallest one.
+     */
+    private static BigInteger reduceOrder(BigInteger order, Map<Long, Integer> factors,
+                                          Modulus mod, final boolean period)
+    {
+        for (Map.Entry<Long, Integer> factor : factors.entrySet()) {
+            BigInteger q = BigInteger.valueOf(factor.getKey());
+            for (int i = 0; i < factor.getValue(); ++i) {
+                BigInteger candidate = order.divide(q);
+                if (!repeats(candidate, mod, period)) {
+                    break;
+                }
+                order = candidate;
+            }
+        }
+        return order;
+    }
+
+    /**
+     * Checks whether F(n) = 0 modulo the modulus, and also F(n+1) = 1 when checking a period.
+     */
+    private static boolean repeats(BigInteger n, Modulus mod, final boolean period) {
+        long[] pair = Fibonacci.pair(n, mod);
+        return pair[0] == 0 && (!period || pair[1] == mod.one());
+    }
+
+
+
+    /**
+     * Factors a positive number into primes.
+     *
+     * @param   n   Positive number
+     * @return      Map of each prime factor to its exponent
+     */
+    static TreeMap<Long, Integer> factor(long n) {
+        TreeMap<Long, Integer> factors = new TreeMap<>();
+
+        for (long p = 2; p < TRIAL_LIMIT && p * p <= n; p += (p == 2) ? 1 : 2) {
+            while (n % p == 0) {
+                factors.merge(p, 1, Integer::sum);
+                n /= p;
+            }
+        }
+
+        if (n > 1) {
+            factorLarge(n, factors);
+        }
+        return factors;
+    }
+
+    private static void factorLarge(final long n, TreeMap<Long, Integer> factors) {
+        if (n < (long)TRIAL_LIMIT * TRIAL_LIMIT || isPrime(n)) {
+            // Anything left below the square of the trial limit has no smaller factors
+            factors.merge(n, 1, Integer::sum);
+            return;
+        }
+
+        long d = rho(n);
+        factorLarge(d, factors);
+        factorLarge(n / d, factors);
+    }
+
+    /**
+     * Deterministic Miller-Rabin primality test for odd numbers.
+     */
+    static boolean isPrime(final long n) {
+        if (n < 2) {
+            return false;
+        } else if (n % 2 == 0) {
+            return n == 2;
+        }
+
+        long d = n - 1;
+        int s = Long.numberOfTrailingZeros(d);
+        d >>>= s;
+
+        Modulus mod = Modulus.of(n);
+        long one = mod.one();
+        long minusOne = mod.residue(n - 1);
+
+        for (long base : WITNESSES) {
+            long a = base % n;
+            if (a == 0) {
+                continue;
+            }
+
+            long x = mod.pow(mod.residue(a), d);
+            if (x == one || x == minusOne) {
+                continue;
+            }
+
+            boolean composite = true;
+            for (int i = 1; i < s && composite; ++i) {
+                x = mod.multiply(x, x);
+                composite = x != minusOne;
+            }
+            if (composite) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds a nontrivial factor of an odd composite number with Brent's variant of Pollard's rho
+     * method. Differences are multiplied together in batches so only one gcd is needed per batch.
+     */
+    private static long rho(final long n) {
+        final int batch = 128;
+        Modulus mod = Modulus.of(n);
+
+        for (long c = 1; ; ++c) {
+            long inc = mod.residue(c);
+            long y = mod.residue(2);
+            long x = y;
+            long ys = y;
+            long q = mod.one();
+            long g = 1;
+
+            for (int r = 1; g == 1; r <<= 1) {
+                x = y;
+                for (int i = 0; i < r; ++i) {
+                    y = mod.add(mod.multiply(y, y), inc);
+                }
+
+                for (int k = 0; k < r && g == 1; k += batch) {
+                    ys = y;
+                    for (int i = 0; i < Math.min(batch, r - k); ++i) {
+                        y = mod.add(mod.multiply(y, y), inc);
+                        q = mod.multiply(q, mod.subtract(x, y));
+                    }
+                    g = gcd(q, n);
+                }
+            }
+
+            if (g == n) {
+                // The batch overshot, so step back through it one difference at a time
+                do {
+                    ys = mod.add(mod.multiply(ys, ys), inc);
+                    g = gcd(mod.subtract(x, ys), n);
+                } while (g == 1);
+            }
+
+            if (g != n) {
+                return g;
+            }
+        }
+    }
+
+    private static long gcd(long a, long b) {
+        while (b != 0) {
+            long t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+
+
+    // Private constructor to prevent instantiation
+    private PisanoPeriods() {}
+}
@@ -0,0 +1,202 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * A utility class that converts very large integers to text in any radix. Values are split in
+ * half by dividing by the cached power <code>radix^(2^k)</code> closest to their square root,
+ * and the two halves are converted in parallel on a {@link ForkJoinPool}. The low half always
+ * has exactly <code>2^k</code> digits, so each half writes into its own fixed part of one shared
+ * array of ASCII bytes and nothing has to be joined afterwards. Halves small enough for
+ * {@link BigInteger#toString(int)} to be fast are converted directly.
+ */
+public final class RadixFormat {
+
+    /**
+     * Values with fewer bits than this are converted with {@link BigInteger#toString(int)}.
+     */
+    static final int SPLIT_BITS = 1 << 15;
+
+    /**
+     * Cached powers <code>radix^(2^k)</code>, by radix and <code>k</code>.
+     */
+    private static final ConcurrentHashMap<Integer, BigInteger> powers = new ConcurrentHashMap<>();
+
+
+
+    /**
+     * Converts an integer to decimal text.
+     *
+     * @param   value   Integer to convert
+     * @return          Decimal digits of the value
+     * @see             #toString(BigInteger, int)
+     */
+    public static String toString(BigInteger value) {
+        return toString(value, 10);
+    }
+
+    /**
+     * Converts an integer to text in a given radix, using all cores of the common
+     * {@link ForkJoinPool} for large values. Digits past 9 are lowercase letters, as with
+     * {@link BigInteger#toString(int)}. If the radix is out of the range
+     * {@link Character#MIN_RADIX} to {@link Character#MAX_RADIX}, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   value   Integer to convert
+     * @param   radix   Radix of the text
+     * @return          Digits of the value, with a leading minus sign if it is negative
+     */
+    public static String toString(BigInteger value, final int radix) {
+        if (value.bitLength() < SPLIT_BITS) {
+            checkRadix(radix);
+            return value.toString(radix);
+        }
+        return new String(toAscii(value, radix), StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Converts an integer to ASCII bytes in a given radix.
+     *
+     * @param   value   Integer to convert
+     * @param   radix   Radix of the text
+     * @return          Digits of the value, with a leading minus sign if it is negative
+     * @see             #toString(BigInteger, int)
+     */
+    public static byte[] toAscii(BigInteger value, final int radix) {
+        checkRadix(radix);
+
+        boolean negative = value.signum() < 0;
+        value = value.abs();
+
+        // Upper bound on the digits, with room for a sign
+        int size = (int)(value.bitLength() / (Math.log(radix) / Math.log(2))) + 3;
+        byte[] out = new byte[size];
+
+        int start;
+        if (value.bitLength() < SPLIT_BITS) {
+            start = writeDirect(value, radix, out, size, 0);
+        } else {
+            start = ForkJoinPool.commonPool().invoke(new Convert(value, radix, out, size, 0));
+        }
+
+        if (negative) {
+            out[--start] = '-';
+        }
+        return Arrays.copyOfRange(out, start, size);
+    }
+
+    private static void checkRadix(final int radix) {
+        if (radix < Character.MIN_RADIX || radix > Character.MAX_RADIX) {
+            throw new IllegalArgumentException("Radix out of range: " + radix);
+        }
+    }
+
+    /**
+     * Finds <code>radix^(2^k)</code>, squaring the largest cached power below it as needed.
+     */
+    static BigInteger power(final int radix, final int k) {
+        Integer key = radix * 32 + k;
+        BigInteger p = powers.get(key);
+        if (p == null) {
+            p = k == 0 ? BigInteger.valueOf(radix) : power(radix, k - 1).pow(2);
+            BigInteger cached = powers.putIfAbsent(key, p);
+            if (cached != null) {
+                p = cached;
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Writes a non-negative value right-aligned so its last digit is just before
+     * <code>end</code>, padded with zeros to at least <code>pad</code> digits.
+     *
+     * @return  Index of the first digit written
+     */
+    private static int writeDirect(BigInteger value, final int radix, byte[] out, final int end,
+                                   final int pad)
+    {
+        String digits = value.toString(radix);
+        int first = end - digits.length();
+        int start = Math.min(first, end - pad);
+        for (int i = start; i < first; ++i) {
+            out[i] = '0';
+        }
+        for (int i = 0; i < digits.length(); ++i) {
+            out[first + i] = (byte)digits.charAt(i);
+        }
+        return start;
+    }
+
+
+    /**
+     * Converts one part of a value, splitting it into halves that are converted in parallel
+     * until they are small enough to convert directly.
+     */
+    private static final class Convert extends RecursiveTask<Integer> {
+        private static final long serialVersionUID = 1L;
+
+        private final BigInteger value;
+        private final int        radix;
+        private final byte[]     out;
+        private final int        end;
+        private final int        pad;
+
+        Convert(BigInteger value, int radix, byte[] out, int end, int pad) {
+            this.value = value;
+            this.radix = radix;
+            this.out   = out;
+            this.end   = end;
+            this.pad   = pad;
+        }
+
+        @Override
+        protected Integer compute() {
+            if (value.bitLength() < SPLIT_BITS) {
+                return writeDirect(value, radix, out, end, pad);
+            }
+
+            // Power with the closest number of bits to half of the value, so halves are even
+            double halfDigits = value.bitLength() / 2.0 / (Math.log(radix) / Math.log(2));
+            int k = (int)Math.round(Math.log(halfDigits) / Math.log(2));
+            int lowDigits = 1 << k;
+
+            BigInteger[] halves = value.divideAndRemainder(power(radix, k));
+            Convert high = new Convert(halves[0], radix, out, end - lowDigits,
+                                       Math.max(0, pad - lowDigits));
+            Convert low  = new Convert(halves[1], radix, out, end, lowDigits);
+
+            low.fork();
+            int start = high.compute();
+            low.join();
+            return start;
+        }
+    }
+
+
+    // Private constructor to prevent instantiation
+    private RadixFormat() {}
+}
@@ -0,0 +1,313 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A named sequence that runs independently of the console's own sequence, with its own period,
+ * max value and block size. Each tick generates, formats and prints one block on a thread of a
+ * pool shared by all jobs, prefixed with the job's name. Ticks are timed by a
+ * {@link TickScheduler}, so changing a job's period moves its timer rather than replacing it,
+ * and a job that falls behind skips the ticks it missed rather than printing them in a burst.
+ *
+ * Jobs share the pool fairly: a tick never prints more than about {@link #SLICE_BYTES} of text,
+ * so a job whose terms are huge takes small blocks rather than holding a thread for a long time,
+ * and the scheduler hands ticks to the pool in order of their deadlines. A job never runs two
+ * ticks at once.
+ *
+ * Commands and ticks come from different threads, so all state is guarded by the job's lock. A
+ * tick only holds the lock to read the state it starts from and to print its block, and
+ * generates and formats the block outside it, so commands never wait for a slow tick. If a
+ * command changes where the job is while a tick is generating, the tick's block is dropped.
+ * A tick that fails, such as when a term would not fit in memory, stops the job and reports why.
+ */
+final class SequenceJob implements Runnable {
+
+    /**
+     * Most bytes of text a tick prints, 64 KB, however many terms that is.
+     */
+    static final int SLICE_BYTES = 1 << 16;
+
+    private final String           id;
+    private final TickScheduler    scheduler;
+    private final OutputSink       out;
+    private final Fibonacci.Engine engine;
+
+    private long       period;
+    private BigInteger max;
+    private int        blockSize;
+
+    /**
+     * Terms the job was last started from, which a stopped job starts over from.
+     */
+    private BigInteger startTerm0;
+    private BigInteger startTerm1;
+
+    /**
+     * Last two terms printed, or the starting terms before the first block.
+     */
+    private Number term0;
+    private Number term1;
+
+    /**
+     * Whether the next block starts with {@link #term0} and {@link #term1} rather than
+     * following them.
+     */
+    private boolean first;
+
+    /**
+     * Terms left to print before passing the max value, or -1 if not yet found.
+     */
+    private long remaining;
+
+    private Console.State       state;
+    private TickScheduler.Timer timer;
+
+    /**
+     * Incremented by every command that changes where the job is, so a tick can tell whether
+     * the block it generated still follows on.
+     */
+    private long version;
+
+
+
+    /**
+     * Creates a stopped job.
+     *
+     * @param   id          Name printed before each block
+     * @param   scheduler   Scheduler the job's ticks run on
+     * @param   out         Output the blocks are printed to
+     * @param   engine      Number representation to generate blocks in
+     * @param   period      Period between blocks in milliseconds
+     * @param   max         Job will not go higher than this value, or null for no limit
+     * @param   blockSize   Number of terms in each block, at least 2
+     */
+    SequenceJob(String id, TickScheduler scheduler, OutputSink out, Fibonacci.Engine engine,
+                long period, BigInteger max, int blockSize)
+    {
+        this.id        = id;
+        this.scheduler = scheduler;
+        this.out       = out;
+        this.engine    = engine;
+        this.period    = period;
+        this.max       = max;
+        this.blockSize = blockSize;
+        this.state     = Console.State.STOPPED;
+    }
+
+
+
+    /**
+     * Starts the job over from two terms. If <code>a</code> is negative or <code>b</code> is
+     * less than <code>a</code>, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   a   First term of the sequence
+     * @param   b   Second term of the sequence
+     */
+    synchronized void start(BigInteger a, BigInteger b) {
+        if (a.signum() < 0 || b.compareTo(a) < 0) {
+            throw new IllegalArgumentException("Terms must be positive, and second term must be "
+                    + "later in the sequence: term1=" + a + " term2=" + b);
+        }
+
+        startTerm0 = a;
+        startTerm1 = b;
+        term0      = a;
+        term1      = b;
+        first      = true;
+        remaining = -1;
+        state     = Console.State.RUNNING;
+        ++version;
+        schedule(0);
+    }
+
+    /**
+     * Resumes a paused job from where it left off. A job that has stopped, by completing or
+     * failing, starts over from its starting terms instead.
+     */
+    synchronized void resume() {
+        if (state == Console.State.STOPPED) {
+            start(startTerm0, startTerm1);
+            return;
+        }
+        state = Console.State.RUNNING;
+        schedule(0);
+    }
+
+    synchronized void pause() {
+        state = Console.State.PAUSED;
+        ++version;
+        cancel();
+    }
+
+    synchronized void stop() {
+        state = Console.State.STOPPED;
+        ++version;
+        cancel();
+    }
+
+    synchronized Console.State state() {
+        return state;
+    }
+
+    synchronized void setPeriod(long period) {
+        this.period = period;
+        if (state == Console.State.RUNNING) {
+            schedule(period);
+        }
+    }
+
+    synchronized void setMax(BigInteger max) {
+        this.max  = max;
+        remaining = -1;
+        ++version;
+    }
+
+    synchronized void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    /**
+     * @return  One line describing the job's state and settings
+     */
+    synchronized String describe() {
+        return String.format("%-12s %-8s %6dms  size %-6d max %s", id,
+                             state.name().toLowerCase(), period, blockSize,
+                             max == null ? "none" : max.toString());
+    }
+
+
+
+    /**
+     * Prints the next block. Only called by the scheduler.
+     */
+    @Override
+    public void run() {
+        final Number     a;
+        final Number     b;
+        final boolean    isFirst;
+        final BigInteger limit;
+        final int        maxSize;
+        final long       started;
+        long             left;
+        synchronized (this) {
+            if (state != Console.State.RUNNING) {
+                return;
+            }
+            a       = term0;
+            b       = term1;
+            isFirst = first;
+            limit   = max;
+            maxSize = blockSize;
+            started = version;
+            left    = remaining;
+        }
+
+        int                    count;
+        List<? extends Number> block;
+        byte[]                 text;
+        try {
+            if (left < 0) {
+                left = Long.MAX_VALUE;
+                if (limit != null) {
+                    long last = Fibonacci.lastIndexWithin(Fibonacci.toBigInteger(a),
+                                                          Fibonacci.toBigInteger(b), limit);
+                    if (last != Long.MAX_VALUE) {
+                        left = Math.max(0, isFirst ? last + 1 : last - 1);
+                    }
+                }
+            }
+
+            // Keep each tick to a slice of text, then cut the block at the max
+            int size = Math.min(maxSize, BlockPipeline.termsWithin(
+                    BlockFormatter.bitLength(b) / BlockFormatter.BITS_PER_DIGIT + 1,
+                    Fibonacci.BITS_PER_TERM / BlockFormatter.BITS_PER_DIGIT, SLICE_BYTES));
+            count = (int)Math.min(Math.max(2, size), left);
+
+            block = List.of();
+            if (count > 0) {
+                block = isFirst ? engine.sequence(count, a, b) : engine.nextBlock(count, a, b);
+            }
+            text = BlockFormatter.format(block, count);
+        } catch (RuntimeException | OutOfMemoryError e) {
+            fail(started, e);
+            return;
+        }
+        left -= count;
+
+        synchronized (this) {
+            if (version != started) {
+                return;     // Moved by a command while generating, so the block no longer follows
+            }
+            // A last block of fewer than two terms leaves the terms as they were
+            first     = false;
+            remaining = left;
+            if (count >= 2) {
+                term0 = block.get(count - 2);
+                term1 = block.get(count - 1);
+            }
+
+            synchronized (out) {
+                if (text.length > 0) {
+                    out.print("\n[" + id + "] ");
+                    out.write(text);
+                }
+                if (remaining == 0) {
+                    out.println("\n[" + id + "] Sequence completed.");
+                    stop();
+                }
+                out.flush();
+            }
+        }
+    }
+
+    /**
+     * Stops the job after a tick fails and reports why, unless a command has moved the job
+     * since the tick started.
+     */
+    private synchronized void fail(long started, Throwable e) {
+        if (version != started) {
+            return;
+        }
+        stop();
+        synchronized (out) {
+            out.println("\n[" + id + "] Job stopped: " + e.getMessage());
+            out.flush();
+        }
+    }
+
+    private void schedule(long delay) {
+        if (timer != null) {
+            timer.reschedule(delay, period, TimeUnit.MILLISECONDS);
+        } else {
+            timer = scheduler.schedule(this, delay, period, TimeUnit.MILLISECONDS,
+                                       TickScheduler.CatchUp.SKIP);
+        }
+    }
+
+    private void cancel() {
+        if (timer != null) {
+            timer.cancel();
+            timer = null;
+        }
+    }
+}
@@ -0,0 +1,297 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RunnableScheduledFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A single-threaded scheduler whose thread never sleeps. Instead of parking until the next task
+ * is due, as {@link java.util.concurrent.ScheduledThreadPoolExecutor} does, the thread spins with
+ * {@link Thread#onSpinWait()}, so a task starts within a few microseconds of being submitted or
+ * coming due, at the cost of keeping a core busy all the time.
+ *
+ * Tasks are submitted through a lock-free queue and moved by the thread into a priority queue,
+ * ordered by due time and then by submission. Cancelled tasks are dropped when they come
+ * due. As with the JDK scheduler, a periodic task that throws is not run again, and after
+ * {@link #shutdown()} tasks already scheduled to run once still run, but periodic tasks stop.
+ */
+final class SpinningScheduler extends AbstractExecutorService implements ScheduledExecutorService {
+
+    /**
+     * Tasks submitted and not yet seen by the thread.
+     */
+    private final Queue<Task<?>> inbox = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Tasks waiting until they are due. Guarded by its own lock, which the thread only holds
+     * while moving, taking and requeueing tasks, so {@link #shutdownNow()} can drain it.
+     */
+    private final PriorityQueue<Task<?>> queue = new PriorityQueue<>();
+
+    /**
+     * Order of submission, for tasks due at the same time.
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    private final CountDownLatch terminated = new CountDownLatch(1);
+
+    private volatile boolean shutdown;
+    private volatile boolean stopped;
+
+    private final Thread thread;
+
+
+
+    /**
+     * Creates a scheduler and starts its thread.
+     *
+     * @param   name    Name of the thread
+     */
+    SpinningScheduler(String name) {
+        thread = new Thread(this::spin, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+
+
+    @Override
+    public void execute(Runnable command) {
+        schedule(command, 0, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public ScheduledFuture<?> schedule(Runnable command, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(Executors.callable(command), dueIn(delay, unit), 0));
+    }
+
+    @Override
+    public <V> ScheduledFuture<V> schedule(Callable<V> callable, long delay, TimeUnit unit) {
+        return enqueue(new Task<>(callable, dueIn(delay, unit), 0));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleAtFixedRate(Runnable command, long initialDelay,
+                                                  long period, TimeUnit unit)
+    {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive: " + period);
+        }
+        return enqueue(new Task<>(Executors.callable(command), dueIn(initialDelay, unit),
+                                  unit.toNanos(period)));
+    }
+
+    @Override
+    public ScheduledFuture<?> scheduleWithFixedDelay(Runnable command, long initialDelay,
+                                                     long delay, TimeUnit unit)
+    {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("Delay must be positive: " + delay);
+        }
+        return enqueue(new Task<>(Executors.callable(command), dueIn(initialDelay, unit),
+                                  -unit.toNanos(delay)));
+    }
+
+
+
+    @Override
+    public void shutdown() {
+        shutdown = true;
+    }
+
+    /**
+     * Stops the thread after the task it is running, which is interrupted.
+     *
+     * @return  Tasks that never started, whether waiting to come due or not yet seen by the
+     *          thread, leaving out any that were cancelled
+     */
+    @Override
+    public List<Runnable> shutdownNow() {
+        shutdown = true;
+        stopped  = true;
+        thread.interrupt();
+
+        List<Runnable> unrun = new ArrayList<>();
+        synchronized (queue) {
+            for (Task<?> task; (task = queue.poll()) != null; ) {
+                if (!task.isCancelled()) {
+                    unrun.add(task);
+                }
+            }
+            for (Task<?> task; (task = inbox.poll()) != null; ) {
+                if (!task.isCancelled()) {
+                    unrun.add(task);
+                }
+            }
+        }
+        return unrun;
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return terminated.getCount() == 0;
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return terminated.await(timeout, unit);
+    }
+
+
+
+    private <V> Task<V> enqueue(Task<V> task) {
+        if (shutdown) {
+            throw new RejectedExecutionException("Scheduler has shut down");
+        }
+        inbox.add(task);
+        return task;
+    }
+
+    private static long dueIn(long delay, TimeUnit unit) {
+        return System.nanoTime() + unit.toNanos(Math.max(0, delay));
+    }
+
+    /**
+     * Runs tasks as they come due until stopped, or until shut down with nothing left to run.
+     */
+    private void spin() {
+        try {
+            while (!stopped) {
+                Task<?> due = null;
+                synchronized (queue) {
+                    for (Task<?> task; (task = inbox.poll()) != null; ) {
+                        queue.add(task);
+                    }
+
+                    Task<?> next = queue.peek();
+                    if (next == null) {
+                        if (shutdown && inbox.isEmpty()) {
+                            break;
+                        }
+                    } else if (next.isCancelled()) {
+                        queue.poll();
+                        continue;
+                    } else if (next.time - System.nanoTime() <= 0) {
+                        due = queue.poll();
+                    }
+                }
+
+                if (due == null) {
+                    Thread.onSpinWait();
+                } else {
+                    due.run();
+                    if (!stopped) {
+                        Thread.interrupted();   // Clear any interrupt meant for the task
+                    }
+                }
+            }
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+
+    /**
+     * A task waiting to run once or periodically.
+     */
+    private final class Task<V> extends FutureTask<V> implements RunnableScheduledFuture<V> {
+
+        /**
+         * Time the task is next due, from {@link System#nanoTime()}.
+         */
+        private long time;
+
+        /**
+         * Nanoseconds between runs at a fixed rate if positive, after each run if negative, or
+         * 0 if the task only runs once.
+         */
+        private final long period;
+
+        private final long order = sequence.getAndIncrement();
+
+        Task(Callable<V> callable, long time, long period) {
+            super(callable);
+            this.time   = time;
+            this.period = period;
+        }
+
+        @Override
+        public boolean isPeriodic() {
+            return period != 0;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(time - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            if (other == this) {
+                return 0;
+            } else if (other instanceof Task) {
+                Task<?> task = (Task<?>)other;
+                long diff = time - task.time;
+                return diff != 0 ? Long.signum(diff) : Long.compare(order, task.order);
+            }
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS),
+                                other.getDelay(TimeUnit.NANOSECONDS));
+        }
+
+        /**
+         * Runs the task, and queues it again if it is periodic. Only called by the thread.
+         */
+        @Override
+        public void run() {
+            if (!isPeriodic()) {
+                super.run();
+            } else if (shutdown) {
+                cancel(false);
+            } else if (runAndReset()) {
+                time = period > 0 ? time + period : System.nanoTime() - period;
+                synchronized (queue) {
+                    if (!stopped) {
+                        queue.add(this);
+                    }
+                }
+            }
+        }
+    }
+}
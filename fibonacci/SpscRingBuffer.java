@@ -0,0 +1,156 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded, lock-free queue for handing objects from exactly one producer thread to exactly one
+ * consumer thread. Slots are preallocated in a ring whose size is a power of two. The producer
+ * only writes the tail sequence and the consumer only writes the head sequence, each with a
+ * release store that publishes the slot it filled or emptied, so neither side ever locks or
+ * retries. Each side caches the last value it read of the other side's sequence to avoid reading
+ * it on every call, and keeps that cache next to its own sequence. The two sides are kept 128
+ * bytes apart so they never share a cache line.
+ *
+ * Only one thread may call {@link #offer(Object)} and only one thread may call {@link #poll()},
+ * although they may change over time if the hand-over is itself safely published.
+ */
+public final class SpscRingBuffer<E> {
+
+    /**
+     * Spacing between the sequences in longs, 128 bytes.
+     */
+    private static final int PAD = 16;
+
+    /**
+     * Index of the tail sequence, the number of elements ever offered.
+     */
+    private static final int TAIL = PAD;
+
+    /**
+     * Index of the last head sequence the producer read, beside the tail sequence.
+     */
+    private static final int HEAD_CACHE = TAIL + 1;
+
+    /**
+     * Index of the head sequence, the number of elements ever polled.
+     */
+    private static final int HEAD = 3 * PAD;
+
+    /**
+     * Index of the last tail sequence the consumer read, beside the head sequence.
+     */
+    private static final int TAIL_CACHE = HEAD + 1;
+
+    /**
+     * Each side's sequence and cache, surrounded by padding. The caches are only read and
+     * written by their own side, with plain accesses.
+     */
+    private final AtomicLongArray sequences = new AtomicLongArray(4 * PAD);
+
+    private final Object[] slots;
+    private final int      mask;
+
+
+
+    /**
+     * Creates a ring buffer with room for at least a given number of elements. The capacity is
+     * rounded up to a power of two.
+     *
+     * @param   capacity    Minimum number of elements
+     */
+    public SpscRingBuffer(final int capacity) {
+        if (capacity <= 0 || capacity > (1 << 30)) {
+            throw new IllegalArgumentException("Capacity out of range: " + capacity);
+        }
+
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        slots = new Object[size];
+        mask  = size - 1;
+    }
+
+
+
+    /**
+     * Adds an element at the tail if there is room. Only called by the producer.
+     *
+     * @param   element     Element to add, which may not be null
+     * @return              Whether the element was added
+     */
+    public boolean offer(E element) {
+        Objects.requireNonNull(element);
+
+        long tail = sequences.getPlain(TAIL);
+        if (tail - sequences.getPlain(HEAD_CACHE) >= slots.length) {
+            long head = sequences.getAcquire(HEAD);
+            sequences.setPlain(HEAD_CACHE, head);
+            if (tail - head >= slots.length) {
+                return false;
+            }
+        }
+
+        slots[(int)tail & mask] = element;
+        sequences.setRelease(TAIL, tail + 1);
+        return true;
+    }
+
+    /**
+     * Removes the element at the head. Only called by the consumer.
+     *
+     * @return  Element at the head, or null if the buffer is empty
+     */
+    @SuppressWarnings("unchecked")
+    public E poll() {
+        long head = sequences.getPlain(HEAD);
+        if (head >= sequences.getPlain(TAIL_CACHE)) {
+            long tail = sequences.getAcquire(TAIL);
+            sequences.setPlain(TAIL_CACHE, tail);
+            if (head >= tail) {
+                return null;
+            }
+        }
+
+        int index = (int)head & mask;
+        E element = (E)slots[index];
+        slots[index] = null;
+        sequences.setRelease(HEAD, head + 1);
+        return element;
+    }
+
+    /**
+     * @return  Number of elements in the buffer, which may already be out of date
+     */
+    public int size() {
+        long head = sequences.getAcquire(HEAD);
+        long tail = sequences.getAcquire(TAIL);
+        return (int)Math.max(0, tail - head);
+    }
+
+    /**
+     * @return  Number of elements the buffer can hold
+     */
+    public int capacity() {
+        return slots.length;
+    }
+}
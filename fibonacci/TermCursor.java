@@ -0,0 +1,94 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.math.BigInteger;
+
+/**
+ * A cursor that steps through a generalized Fibonacci sequence without allocating. The last two
+ * terms are kept in two {@link BigNat} values, and each step adds the newer term to the older
+ * one in place and swaps their roles, so the two limb arrays are used in turn. Once the arrays
+ * have grown to the size of the terms, stepping allocates nothing, which suits streaming output
+ * where each term is printed and then dropped.
+ *
+ * The values returned by the cursor are overwritten by later steps, so they must be copied with
+ * {@link BigNat#toBigInteger()} or {@link BigNat#BigNat(BigNat)} to be kept.
+ */
+public final class TermCursor {
+
+    /**
+     * Second-last term reached.
+     */
+    private BigNat previous;
+
+    /**
+     * Last term reached.
+     */
+    private BigNat current;
+
+
+
+    /**
+     * Creates a cursor positioned at <code>b</code>, so the first call to {@link #next()} gives
+     * the sum of <code>a</code> and <code>b</code>, as with
+     * {@link Fibonacci#nextBlock(int, BigInteger, BigInteger)}. If <code>a</code> or
+     * <code>b</code> are negative, or <code>b</code> is less than <code>a</code>, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   a       Two terms before the first term given by the cursor
+     * @param   b       One term before the first term given by the cursor
+     */
+    public TermCursor(BigInteger a, BigInteger b) {
+        if (a.compareTo(BigInteger.ZERO) == -1 || b.compareTo(a) == -1) {
+            throw new IllegalArgumentException("term1 and term2 must be non-negative, and "
+                    + "term2 must be later in the sequence: term1=" + a + " term2=" + b);
+        }
+
+        previous = new BigNat(a);
+        current  = new BigNat(b);
+    }
+
+
+
+    /**
+     * Steps to the next term of the sequence.
+     *
+     * @return  The new last term, which is overwritten two steps later
+     */
+    public BigNat next() {
+        BigNat next = previous.add(current);
+        previous = current;
+        current  = next;
+        return current;
+    }
+
+    /**
+     * @return  Last term reached
+     */
+    public BigNat current() {
+        return current;
+    }
+
+    /**
+     * @return  Second-last term reached
+     */
+    public BigNat previous() {
+        return previous;
+    }
+}
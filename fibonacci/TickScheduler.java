@@ -0,0 +1,86 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs tasks periodically. A periodic task never runs twice at once: its next run is only
+ * arranged once the current run is done, and the {@link CatchUp} policy decides when that is if
+ * the run started late or took longer than the period.
+ */
+interface TickScheduler {
+
+    /**
+     * What a periodic task does about runs it has missed because it was late.
+     */
+    enum CatchUp {
+        /**
+         * Missed runs are dropped, and the next run is at the next time still on the original
+         * schedule, so the task stays in step without bursts.
+         */
+        SKIP,
+        /**
+         * Missed runs are made up back to back until the task is back on its original schedule.
+         */
+        BURST,
+        /**
+         * The schedule moves, so the next run is a whole period after the late run finished.
+         */
+        DELAY
+    }
+
+    /**
+     * A scheduled task, which may be rescheduled or cancelled from any thread.
+     */
+    interface Timer {
+        /**
+         * Moves the task to a new schedule, keeping its place if it is running now.
+         *
+         * @param   delay   Time until the next run
+         * @param   period  Time between runs
+         * @param   unit    Unit of the delay and period
+         */
+        void reschedule(long delay, long period, TimeUnit unit);
+
+        /**
+         * Stops the task from running again. A run that is due but has not started is dropped,
+         * and a run in progress is not interrupted.
+         */
+        void cancel();
+    }
+
+    /**
+     * Schedules a task to run periodically. If the delay is negative or the period is not
+     * positive, an {@link IllegalArgumentException} is thrown.
+     *
+     * @param   task    Task to run
+     * @param   delay   Time until the first run
+     * @param   period  Time between runs
+     * @param   unit    Unit of the delay and period
+     * @param   catchUp What to do about runs missed by being late
+     * @return          Timer to reschedule or cancel the task with
+     */
+    Timer schedule(Runnable task, long delay, long period, TimeUnit unit, CatchUp catchUp);
+
+    /**
+     * Stops running tasks. Runs in progress finish, but nothing else is started.
+     */
+    void shutdown();
+}
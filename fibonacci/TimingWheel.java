@@ -0,0 +1,315 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel, a {@link TickScheduler} for large numbers of periodic tasks. Time is
+ * divided into ticks of a fixed resolution, and a ring of buckets holds the tasks due in each
+ * tick, with a count of the times round the ring still to wait for those due further ahead. Each
+ * bucket is a doubly linked list, so scheduling, rescheduling and cancelling a task are O(1)
+ * whatever the number of tasks, and a single thread only ever looks at the bucket of the current
+ * tick. Due tasks are handed to an {@link Executor} to run.
+ *
+ * Tasks run up to one tick late, so the resolution trades timer accuracy against how often the
+ * wheel thread wakes up. While the wheel holds no tasks its thread parks until one is scheduled,
+ * and then skips straight to the present tick. All changes to the wheel are made while holding
+ * its lock, which is only held for the O(1) list operations and for handing the tasks of one
+ * bucket to the executor.
+ */
+final class TimingWheel implements TickScheduler {
+
+    private final long     tickNanos;
+    private final Entry[]  buckets;
+    private final int      mask;
+    private final Executor executor;
+
+    /**
+     * Time of tick 0.
+     */
+    private final long start;
+
+    /**
+     * Next tick to expire. Advanced by the wheel thread, and moved up to the present when a task
+     * is scheduled into an empty wheel.
+     */
+    private long tick;
+
+    /**
+     * Number of tasks in the buckets.
+     */
+    private int count;
+
+    private volatile boolean running = true;
+
+    private final Thread worker;
+
+
+
+    /**
+     * Creates a wheel and starts its thread. If the resolution or size is not positive, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   name        Name of the wheel thread
+     * @param   resolution  Length of a tick
+     * @param   unit        Unit of the resolution
+     * @param   size        Minimum number of buckets, rounded up to a power of two
+     * @param   executor    Executor that runs due tasks
+     */
+    TimingWheel(String name, long resolution, TimeUnit unit, int size, Executor executor) {
+        if (resolution <= 0) {
+            throw new IllegalArgumentException("Resolution must be positive: " + resolution);
+        } else if (size <= 0 || size > (1 << 30)) {
+            throw new IllegalArgumentException("Size out of range: " + size);
+        }
+
+        int buckets = Integer.highestOneBit(size);
+        if (buckets < size) {
+            buckets <<= 1;
+        }
+        this.tickNanos = unit.toNanos(resolution);
+        this.buckets   = new Entry[buckets];
+        this.mask      = buckets - 1;
+        this.executor  = executor;
+        this.start     = System.nanoTime();
+
+        worker = new Thread(this::turn, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+
+
+    @Override
+    public Timer schedule(Runnable task, long delay, long period, TimeUnit unit,
+                          CatchUp catchUp)
+    {
+        if (delay < 0 || period <= 0) {
+            throw new IllegalArgumentException("Delay must be non-negative and period positive: "
+                    + "delay=" + delay + " period=" + period);
+        }
+
+        Entry entry = new Entry(task, catchUp);
+        entry.reschedule(delay, period, unit);
+        return entry;
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        LockSupport.unpark(worker);
+    }
+
+
+
+    /**
+     * Advances the wheel one tick at a time, expiring each bucket once its tick has come. Parks
+     * without a timeout while the wheel is empty, until {@link #link} unparks it.
+     */
+    private void turn() {
+        while (running) {
+            boolean empty;
+            long    wait;
+            synchronized (this) {
+                empty = count == 0;
+                wait  = start + tick * tickNanos - System.nanoTime();
+                if (!empty && wait <= 0) {
+                    expire((int)(tick & mask));
+                    ++tick;
+                    continue;
+                }
+            }
+
+            if (empty) {
+                LockSupport.park(this);
+            } else {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+    }
+
+    /**
+     * Hands the tasks due in a bucket to the executor, and counts down the rest.
+     */
+    private void expire(int bucket) {
+        Entry entry = buckets[bucket];
+        while (entry != null) {
+            Entry next = entry.next;
+            if (entry.rounds > 0) {
+                --entry.rounds;
+            } else {
+                unlink(entry);
+                entry.running = true;
+                try {
+                    executor.execute(entry);
+                } catch (RejectedExecutionException e) {
+                    entry.running = false;  // Executor has shut down, so drop the task
+                }
+            }
+            entry = next;
+        }
+    }
+
+    /**
+     * Puts an entry in the bucket of the first tick at or after its deadline.
+     */
+    private void link(Entry entry) {
+        if (count++ == 0) {
+            // The wheel was idle, so skip the empty ticks since and wake its thread
+            tick = Math.max(tick, Math.floorDiv(System.nanoTime() - start, tickNanos));
+            LockSupport.unpark(worker);
+        }
+
+        long target = Math.max(tick, Math.floorDiv(entry.deadline - start + tickNanos - 1,
+                                                   tickNanos));
+        int bucket = (int)(target & mask);
+
+        entry.rounds = (target - tick) / buckets.length;
+        entry.bucket = bucket;
+        entry.prev   = null;
+        entry.next   = buckets[bucket];
+        if (entry.next != null) {
+            entry.next.prev = entry;
+        }
+        buckets[bucket] = entry;
+    }
+
+    private void unlink(Entry entry) {
+        if (entry.bucket < 0) {
+            return;
+        }
+        --count;
+        if (entry.prev != null) {
+            entry.prev.next = entry.next;
+        } else {
+            buckets[entry.bucket] = entry.next;
+        }
+        if (entry.next != null) {
+            entry.next.prev = entry.prev;
+        }
+        entry.prev   = null;
+        entry.next   = null;
+        entry.bucket = -1;
+    }
+
+
+    /**
+     * A task in the wheel. All fields are guarded by the wheel's lock.
+     */
+    private final class Entry implements Timer, Runnable {
+        private final Runnable task;
+        private final CatchUp  catchUp;
+
+        private long    period;
+        private long    deadline;
+        private long    rounds;
+        private int     bucket = -1;
+        private Entry   prev;
+        private Entry   next;
+
+        /**
+         * Whether the task has been handed to the executor and has not finished.
+         */
+        private boolean running;
+
+        /**
+         * Whether the deadline was set while running, so it is kept when the run finishes.
+         */
+        private boolean moved;
+
+        private boolean cancelled;
+
+        Entry(Runnable task, CatchUp catchUp) {
+            this.task    = task;
+            this.catchUp = catchUp;
+        }
+
+        @Override
+        public void reschedule(long delay, long period, TimeUnit unit) {
+            synchronized (TimingWheel.this) {
+                this.period   = unit.toNanos(period);
+                this.deadline = System.nanoTime() + unit.toNanos(delay);
+                if (cancelled) {
+                    return;
+                } else if (running) {
+                    moved = true;
+                } else {
+                    unlink(this);
+                    link(this);
+                }
+            }
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (TimingWheel.this) {
+                cancelled = true;
+                unlink(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            synchronized (TimingWheel.this) {
+                if (cancelled) {
+                    running = false;    // Cancelled after it was handed to the executor
+                    return;
+                }
+            }
+
+            boolean completed = false;
+            try {
+                task.run();
+                completed = true;
+            } finally {
+                synchronized (TimingWheel.this) {
+                    running = false;
+                    if (!completed) {
+                        cancelled = true;   // As with an executor, a task that throws stops
+                    }
+                    if (!cancelled) {
+                        rearm();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Sets the deadline of the next run according to the catch-up policy.
+         */
+        private void rearm() {
+            long now = System.nanoTime();
+            if (moved) {
+                moved = false;
+            } else if (catchUp == CatchUp.DELAY) {
+                deadline = now + period;
+            } else {
+                deadline += period;
+                if (catchUp == CatchUp.SKIP && deadline <= now) {
+                    deadline += ((now - deadline) / period + 1) * period;
+                }
+            }
+            link(this);
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The Console Thread Experiment attempts to implement GUI-like behavior in a console.
+ * Copyright (C) 2017  Terry Weiss
+ *
+ * This file is part of the Console Thread Experiment.
+ *
+ * The Console Thread Experiment is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * The Console Thread Experiment is distributed in the hope that it will be useful, but
+ * WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS
+ * FOR A PARTICULAR PURPOSE.  See the GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License along with
+ * The Console Thread Experiment.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package fibonacci;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A token bucket that paces work to an average rate. Tokens accrue continuously at the rate,
+ * measured with {@link System#nanoTime()}, up to a burst capacity. Work is allowed whenever the
+ * balance is not negative, and taking tokens for it may leave the balance in debt, so a unit of
+ * work larger than the capacity is still allowed and simply delays the next one for longer.
+ *
+ * Because tokens are computed from the actual time elapsed rather than from when work was
+ * scheduled, a late wake-up is credited on the next check and the average rate does not drift.
+ * The capacity limits how much a long stall can be caught up at once.
+ */
+final class TokenBucket {
+
+    private static final double NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Tokens accrued per nanosecond.
+     */
+    private final double rate;
+
+    /**
+     * Most tokens the bucket can hold.
+     */
+    private final double capacity;
+
+    /**
+     * Current balance, negative while in debt.
+     */
+    private double tokens;
+
+    /**
+     * Time the balance was last brought up to date.
+     */
+    private long last;
+
+
+
+    /**
+     * Creates an empty bucket. If the rate or the burst time is not positive, an
+     * {@link IllegalArgumentException} is thrown.
+     *
+     * @param   perSecond   Tokens accrued per second
+     * @param   burst       Seconds of tokens the bucket can hold
+     */
+    TokenBucket(final double perSecond, final double burst) {
+        if (!(perSecond > 0) || Double.isInfinite(perSecond)) {
+            throw new IllegalArgumentException("Rate must be positive: " + perSecond);
+        }
+        if (!(burst > 0)) {
+            throw new IllegalArgumentException("Burst must be positive: " + burst);
+        }
+
+        this.rate     = perSecond / NANOS_PER_SECOND;
+        this.capacity = perSecond * burst;
+        this.last     = System.nanoTime();
+    }
+
+
+
+    /**
+     * @return  Tokens accrued per second
+     */
+    double perSecond() {
+        return rate * NANOS_PER_SECOND;
+    }
+
+    /**
+     * Finds how long until work is allowed.
+     *
+     * @return  Nanoseconds until the balance is no longer negative, or 0 if it is not now
+     */
+    synchronized long delayNanos() {
+        refill();
+        return tokens >= 0 ? 0 : (long)Math.ceil(-tokens / rate);
+    }
+
+    /**
+     * Takes tokens for work that has been done, going into debt if there are too few.
+     *
+     * @param   count   Number of tokens to take
+     */
+    synchronized void take(final double count) {
+        refill();
+        tokens -= count;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - last) * rate);
+        last = now;
+    }
+}